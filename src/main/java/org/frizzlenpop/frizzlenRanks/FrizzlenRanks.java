@@ -11,14 +11,20 @@ import org.frizzlenpop.frizzlenRanks.commands.*;
 import org.frizzlenpop.frizzlenRanks.config.ConfigManager;
 import org.frizzlenpop.frizzlenRanks.data.DataManager;
 import org.frizzlenpop.frizzlenRanks.listeners.PlayerListener;
-import org.frizzlenpop.frizzlenRanks.model.Group;
-import org.frizzlenpop.frizzlenRanks.model.User;
-import org.frizzlenpop.frizzlenRanks.tasks.TemporaryPermissionCleanupTask;
+import org.frizzlenpop.frizzlenRanks.listeners.PluginListener;
+import org.frizzlenpop.frizzlenRanks.permission.AttachmentManager;
+import org.frizzlenpop.frizzlenRanks.permission.PermissionSnapshot;
+import org.frizzlenpop.frizzlenRanks.tab.TabUpdateQueue;
+import org.frizzlenpop.frizzlenRanks.tab.TeamManager;
+import org.frizzlenpop.frizzlenRanks.tasks.ExpiryScheduler;
+import org.frizzlenpop.frizzlenRanks.tasks.PermissionRefreshQueue;
+import org.frizzlenpop.frizzlenRanks.tasks.UserEvictionTask;
 import org.frizzlenpop.frizzlenRanks.vault.VaultChatHook;
 import org.frizzlenpop.frizzlenRanks.vault.VaultPermissionHook;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 public final class FrizzlenRanks extends JavaPlugin {
@@ -29,8 +35,14 @@ public final class FrizzlenRanks extends JavaPlugin {
     private VaultChatHook chatHook;
     private final Logger logger = getLogger();
     
-    // Map to store player permission attachments to prevent garbage collection
-    private final java.util.Map<String, org.bukkit.permissions.PermissionAttachment> playerAttachments = new java.util.HashMap<>();
+    private AttachmentManager attachmentManager;
+    private PermissionRefreshQueue refreshQueue;
+    private ExpiryScheduler expiryScheduler;
+    private TeamManager teamManager;
+    private TabUpdateQueue tabUpdateQueue;
+    
+    // The names of the permissions registered on the server, or null until they are next needed
+    private List<String> registeredPermissionNames;
 
     @Override
     public void onEnable() {
@@ -39,6 +51,11 @@ public final class FrizzlenRanks extends JavaPlugin {
         // Initialize managers
         configManager = new ConfigManager(this);
         dataManager = new DataManager(this);
+        attachmentManager = new AttachmentManager(this);
+        refreshQueue = new PermissionRefreshQueue(this);
+        expiryScheduler = new ExpiryScheduler(this);
+        teamManager = new TeamManager(this);
+        tabUpdateQueue = new TabUpdateQueue(this);
         
         // Load data
         dataManager.loadAll();
@@ -65,30 +82,24 @@ public final class FrizzlenRanks extends JavaPlugin {
         // Update tab display for all online players (for sorting)
         Bukkit.getScheduler().runTaskLater(this, () -> {
             logger.info("Updating tab display for all online players...");
-            for (org.bukkit.entity.Player player : Bukkit.getOnlinePlayers()) {
-                PlayerListener tabUpdater = new PlayerListener(this);
-                tabUpdater.updatePlayerTabDisplay(player);
-            }
+            tabUpdateQueue.requestAll();
         }, 20L); // Run after 1 second to ensure all plugins are loaded
         
-        // Schedule a recurring task to refresh the tab list sorting periodically
-        // This ensures our sorting persists even if other plugins modify the scoreboard
-        Bukkit.getScheduler().runTaskTimer(this, () -> {
-            for (org.bukkit.entity.Player player : Bukkit.getOnlinePlayers()) {
-                PlayerListener tabUpdater = new PlayerListener(this);
-                tabUpdater.ensurePlayerTabSorting(player); // Only check/fix the tab sorting without changing the display name
-            }
-        }, 100L, 200L); // Run every 10 seconds (200 ticks) after an initial 5-second delay (100 ticks)
+        // Put players back in their tab sorting teams if another plugin moved them
+        // Teams are otherwise only updated when a player's rank or prefix changes
+        Bukkit.getScheduler().runTaskTimer(this, teamManager::verifyAll, 100L, 200L); // Run every 10 seconds (200 ticks) after an initial 5-second delay (100 ticks)
         
-        // Schedule temporary permission/group cleanup task
-        // This removes expired temporary permissions and groups
-        new TemporaryPermissionCleanupTask(this).runTaskTimer(this, 300L, 1200L); // Run every minute (1200 ticks) after an initial 15-second delay (300 ticks)
+        // Unload offline users that have not been used for a while
+        new UserEvictionTask(this).runTaskTimer(this, 1200L, 1200L); // Run every minute (1200 ticks)
     }
 
     @Override
     public void onDisable() {
-        // Save all data
-        dataManager.saveAll();
+        // Write all pending changes before the server stops
+        dataManager.shutdown();
+        
+        // Drop the attachments so a reload starts from a clean state
+        attachmentManager.clear();
         
         logger.info("FrizzlenRanks has been disabled!");
     }
@@ -130,73 +141,38 @@ public final class FrizzlenRanks extends JavaPlugin {
     
     /**
      * Resets Vault's permission cache for a specific player.
-     * This ensures their permissions are properly updated after changes.
+     * The refresh is queued and applied together with all other refreshes
+     * requested during the same tick.
      * 
      * @param playerName the name of the player to update
      */
     public void resetPlayerPermissionCache(String playerName) {
-        org.bukkit.entity.Player player = Bukkit.getPlayer(playerName);
-        if (player != null && player.isOnline()) {
-            logger.info("Resetting permission cache for player: " + playerName);
-            
+        refreshQueue.request(playerName);
+    }
+    
+    /**
+     * Applies a player's resolved permissions to their attachment right away.
+     * Callers should normally go through {@link #resetPlayerPermissionCache(String)}.
+     * 
+     * @param player the player to update
+     */
+    public void applyPlayerPermissions(org.bukkit.entity.Player player) {
+        String playerName = player.getName();
+        if (player.isOnline()) {
             try {
-                // Remove existing attachment from our storage if it exists
-                if (playerAttachments.containsKey(playerName)) {
-                    org.bukkit.permissions.PermissionAttachment oldAttachment = playerAttachments.get(playerName);
-                    player.removeAttachment(oldAttachment);
-                    playerAttachments.remove(playerName);
-                    logger.info("Removed previous permission attachment for: " + playerName);
-                }
+                // Use the same snapshot Vault checks use, expanding wildcards over the
+                // permissions registered on the server since Bukkit does not understand them
+                org.frizzlenpop.frizzlenRanks.model.World pluginWorld = dataManager.getWorld(player.getWorld().getName());
+                PermissionSnapshot snapshot = pluginWorld.getPermissionSnapshot(player.getName());
+                Map<String, Boolean> permissions = snapshot.hasWildcards()
+                        ? snapshot.expand(getRegisteredPermissionNames())
+                        : snapshot.getPermissions();
                 
-                // Clear any other existing permission attachments for this plugin
-                player.getEffectivePermissions().forEach(attachment -> {
-                    if (attachment.getAttachment() != null && attachment.getAttachment().getPlugin() == this) {
-                        player.removeAttachment(attachment.getAttachment());
-                    }
-                });
-                
-                // Create a single attachment for all permissions
-                org.bukkit.permissions.PermissionAttachment attachment = player.addAttachment(this);
-                
-                // CRUCIAL: Store the attachment in our map to prevent garbage collection
-                playerAttachments.put(playerName, attachment);
-                
-                // Method 2: Reapply player's group permissions
-                String worldName = player.getWorld().getName();
-                org.frizzlenpop.frizzlenRanks.model.World pluginWorld = dataManager.getWorld(worldName);
-                User user = pluginWorld.getUser(playerName);
-                
-                // Log groups for debugging
-                logger.info("Player " + playerName + " has groups: " + String.join(", ", user.getGroups()));
-                
-                // For each group, make sure its permissions are refreshed
-                for (String groupName : user.getGroups()) {
-                    if (pluginWorld.hasGroup(groupName)) {
-                        Group group = pluginWorld.getGroup(groupName);
-                        logger.info("Group " + groupName + " has " + group.getPermissions().size() + " permissions and prefix: " + group.getMeta("prefix"));
-                        
-                        // Log all permissions for debugging
-                        for (String permission : group.getPermissions()) {
-                            logger.info("  Adding permission from group " + groupName + ": " + permission);
-                            attachment.setPermission(permission, true);
-                        }
-                        
-                        // Also add inherited permissions from parent groups
-                        addInheritedPermissions(pluginWorld, group, attachment, new ArrayList<>());
-                    }
+                // Only the nodes that changed since the last update are sent to Bukkit
+                int changed = attachmentManager.apply(player, permissions);
+                if (changed > 0) {
+                    logger.fine("Updated " + changed + " permission nodes for player: " + playerName);
                 }
-                
-                // Apply any direct user permissions
-                for (String permission : user.getPermissions()) {
-                    logger.info("  Adding direct user permission: " + permission);
-                    attachment.setPermission(permission, true);
-                }
-                
-                // Force a recalculation of permissions
-                player.recalculatePermissions();
-                
-                logger.info("Successfully reset permissions for player: " + playerName);
-                
             } catch (Exception e) {
                 logger.log(java.util.logging.Level.SEVERE, "Error resetting permissions for " + playerName + ": " + e.getMessage(), e);
             }
@@ -204,44 +180,28 @@ public final class FrizzlenRanks extends JavaPlugin {
     }
     
     /**
-     * Recursively adds permissions from parent groups to avoid inheritance issues.
+     * Gets the names of all permissions registered on the server.
+     * The list is built once and kept until a plugin is enabled or disabled.
      * 
-     * @param world the world containing the groups
-     * @param group the current group to process
-     * @param attachment the permission attachment to add permissions to
-     * @param processedGroups list of groups already processed to prevent infinite recursion
+     * @return the registered permission names
      */
-    private void addInheritedPermissions(org.frizzlenpop.frizzlenRanks.model.World world, Group group, 
-                                         org.bukkit.permissions.PermissionAttachment attachment, 
-                                         List<String> processedGroups) {
-        // Prevent infinite recursion
-        if (processedGroups.contains(group.getName())) {
-            return;
-        }
-        
-        // Mark this group as processed
-        processedGroups.add(group.getName());
-        
-        // Process each parent group first (process inheritance before this group's own permissions)
-        // This ensures that higher priority permissions from the current group override inherited ones
-        for (String parentName : group.getInheritance()) {
-            if (world.hasGroup(parentName)) {
-                Group parentGroup = world.getGroup(parentName);
-                logger.info("Processing inherited permissions from group: " + parentName + " for group: " + group.getName());
-                
-                // Recursively process the parent's parents first
-                addInheritedPermissions(world, parentGroup, attachment, processedGroups);
-                
-                // Then add all permissions from the parent group
-                for (String permission : parentGroup.getPermissions()) {
-                    // Skip negated permissions for logging clarity
-                    if (!permission.startsWith("-")) {
-                        logger.info("  Adding inherited permission from group " + parentName + ": " + permission);
-                    }
-                    attachment.setPermission(permission, true);
-                }
+    private List<String> getRegisteredPermissionNames() {
+        if (registeredPermissionNames == null) {
+            List<String> names = new ArrayList<>();
+            for (org.bukkit.permissions.Permission permission : getServer().getPluginManager().getPermissions()) {
+                names.add(permission.getName());
             }
+            registeredPermissionNames = names;
         }
+        return registeredPermissionNames;
+    }
+    
+    /**
+     * Forgets the registered permission names after plugins were enabled or disabled,
+     * so the next expansion of a wildcard sees their permissions.
+     */
+    public void clearRegisteredPermissionNames() {
+        registeredPermissionNames = null;
     }
     
     private void registerCommands() {
@@ -257,6 +217,7 @@ public final class FrizzlenRanks extends JavaPlugin {
     
     private void registerListeners() {
         getServer().getPluginManager().registerEvents(new PlayerListener(this), this);
+        getServer().getPluginManager().registerEvents(new PluginListener(this), this);
     }
     
     public static FrizzlenRanks getInstance() {
@@ -278,12 +239,25 @@ public final class FrizzlenRanks extends JavaPlugin {
     public VaultChatHook getChatHook() {
         return chatHook;
     }
+    
+    public PermissionRefreshQueue getRefreshQueue() {
+        return refreshQueue;
+    }
+    
+    public ExpiryScheduler getExpiryScheduler() {
+        return expiryScheduler;
+    }
+    
+    public TeamManager getTeamManager() {
+        return teamManager;
+    }
+    
+    public TabUpdateQueue getTabUpdateQueue() {
+        return tabUpdateQueue;
+    }
 
     // Add cleanup for permissions when a player quits the server
     public void cleanupPlayerPermissions(String playerName) {
-        if (playerAttachments.containsKey(playerName)) {
-            logger.info("Cleaning up permission attachments for player: " + playerName);
-            playerAttachments.remove(playerName);
-        }
+        attachmentManager.remove(playerName);
     }
 }
@@ -1,16 +1,12 @@
 package org.frizzlenpop.frizzlenRanks.commands;
 
-import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
-import org.bukkit.entity.Player;
 import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
-import org.frizzlenpop.frizzlenRanks.listeners.PlayerListener;
 import org.frizzlenpop.frizzlenRanks.model.Group;
-import org.frizzlenpop.frizzlenRanks.model.User;
 import org.frizzlenpop.frizzlenRanks.model.World;
 
 import java.util.ArrayList;
@@ -108,7 +104,11 @@ public class GroupCommand implements CommandExecutor, TabCompleter {
                     return true;
                 }
                 
-                group.addInheritance(inheritedGroup);
+                if (!group.addInheritance(inheritedGroup)) {
+                    sender.sendMessage(ChatColor.RED + "Group " + inheritedGroup + " already inherits from " + groupName + 
+                        ", so this would make the inheritance circular.");
+                    return true;
+                }
                 sender.sendMessage(ChatColor.GREEN + "Added group " + inheritedGroup + " to inheritance of " + groupName);
                 break;
                 
@@ -221,6 +221,12 @@ public class GroupCommand implements CommandExecutor, TabCompleter {
                 return true;
         }
         
+        // Refresh everyone who depends on this group in one batch after permission changes
+        if (action.equals("addperm") || action.equals("removeperm") || action.equals("addgroup")
+                || action.equals("removegroup") || action.equals("priority")) {
+            plugin.getRefreshQueue().requestGroup(world, groupName);
+        }
+        
         // Save if auto-save is enabled
         if (plugin.getConfigManager().autoSave()) {
             plugin.getDataManager().saveWorld(world);
@@ -293,13 +299,7 @@ public class GroupCommand implements CommandExecutor, TabCompleter {
      * @param groupName the name of the group
      */
     private void updatePlayersInGroup(World world, String groupName) {
-        // Update all online players who are in this group
-        for (Player player : Bukkit.getOnlinePlayers()) {
-            User user = world.getUser(player.getName());
-            if (user.inGroup(groupName)) {
-                PlayerListener playerListener = new PlayerListener(plugin);
-                playerListener.updatePlayerTabDisplay(player);
-            }
-        }
+        // Queue the online players in this group; their updates are spread over the next ticks
+        plugin.getTabUpdateQueue().requestGroup(world, groupName);
     }
 } 
\ No newline at end of file
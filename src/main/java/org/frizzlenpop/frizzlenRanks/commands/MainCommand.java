@@ -23,7 +23,7 @@ import java.util.stream.Collectors;
 public class MainCommand implements CommandExecutor, TabCompleter {
     private final FrizzlenRanks plugin;
     private final List<String> subCommands = Arrays.asList(
-            "reload", "save", "backup", "helpme", "info", "version", "fix", "forceglobal", "refreshgroups", "checkperms", "refreshpermissions", "testperm"
+            "reload", "save", "backup", "helpme", "info", "version", "fix", "forceglobal", "refreshgroups", "checkperms", "refreshpermissions", "testperm", "migrate"
     );
     
     /**
@@ -77,9 +77,8 @@ public class MainCommand implements CommandExecutor, TabCompleter {
                         }
                     }
                     
-                    // Update tab display
-                    PlayerListener playerListener = new PlayerListener(plugin);
-                    playerListener.updatePlayerTabDisplay(player);
+                    // Queue the tab display update, spread over the next ticks
+                    plugin.getTabUpdateQueue().request(player);
                     
                     // Log for debugging
                     plugin.getLogger().info("Updated permissions for player: " + player.getName() + 
@@ -101,6 +100,15 @@ public class MainCommand implements CommandExecutor, TabCompleter {
                 sender.sendMessage(ChatColor.GREEN + "FrizzlenRanks data backed up.");
                 break;
                 
+            case "migrate":
+                if (args.length < 2 || !(args[1].equalsIgnoreCase("yaml") || args[1].equalsIgnoreCase("sqlite"))) {
+                    sender.sendMessage(ChatColor.RED + "Usage: /fr migrate <yaml|sqlite>");
+                    return true;
+                }
+                
+                migrateStorage(sender, args[1].toLowerCase());
+                break;
+                
             case "helpme":
                 // Create default files
                 plugin.getDataManager().loadAll();
@@ -251,8 +259,7 @@ public class MainCommand implements CommandExecutor, TabCompleter {
                     sender.sendMessage(ChatColor.GREEN + "Refreshing permissions for all online players...");
                     for (org.bukkit.entity.Player onlinePlayer : Bukkit.getOnlinePlayers()) {
                         plugin.resetPlayerPermissionCache(onlinePlayer.getName());
-                        PlayerListener playerListener = new PlayerListener(plugin);
-                        playerListener.updatePlayerTabDisplay(onlinePlayer);
+                        plugin.getTabUpdateQueue().request(onlinePlayer);
                         sender.sendMessage(ChatColor.GREEN + "Refreshed permissions for: " + onlinePlayer.getName());
                     }
                 } else {
@@ -349,7 +356,7 @@ public class MainCommand implements CommandExecutor, TabCompleter {
                             foundInGroup = true;
                         } else {
                             // Check for inherited permissions too
-                            boolean inherited = checkInheritedPermission(playerWorld, group, testPermission, new ArrayList<>());
+                            boolean inherited = checkInheritedPermission(playerWorld, group, testPermission);
                             if (inherited) {
                                 sender.sendMessage(ChatColor.GREEN + "Permission inherited from a parent of group: " + groupName);
                                 foundInGroup = true;
@@ -425,6 +432,35 @@ public class MainCommand implements CommandExecutor, TabCompleter {
         sender.sendMessage(ChatColor.GREEN + "Please reconnect to the server for changes to take effect.");
     }
     
+    /**
+     * Copies all stored groups and users into another storage backend.
+     * Pending changes are written first; the copy itself runs off the main thread.
+     * 
+     * @param sender the command sender
+     * @param targetType the backend to copy into
+     */
+    private void migrateStorage(CommandSender sender, String targetType) {
+        if (plugin.getDataManager().getStorageType().equals(targetType)) {
+            sender.sendMessage(ChatColor.RED + "Data is already stored in " + targetType + ".");
+            return;
+        }
+        
+        plugin.getDataManager().flush();
+        sender.sendMessage(ChatColor.GREEN + "Copying data to " + targetType + " storage...");
+        
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            int migrated = plugin.getDataManager().migrateStorage(targetType);
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                if (migrated < 0) {
+                    sender.sendMessage(ChatColor.RED + "Could not open " + targetType + " storage. Check the console for details.");
+                } else {
+                    sender.sendMessage(ChatColor.GREEN + "Copied " + migrated + " users to " + targetType + " storage.");
+                    sender.sendMessage(ChatColor.GREEN + "Set 'storage: " + targetType + "' in config.yml and run /fr reload to use it.");
+                }
+            });
+        });
+    }
+    
     /**
      * Displays help information.
      * 
@@ -444,6 +480,7 @@ public class MainCommand implements CommandExecutor, TabCompleter {
         sender.sendMessage(ChatColor.GREEN + "/fr checkperms <player> [permission]" + ChatColor.WHITE + " - Check a player's permissions");
         sender.sendMessage(ChatColor.GREEN + "/fr refreshpermissions [player]" + ChatColor.WHITE + " - Refresh permissions for a player or all players");
         sender.sendMessage(ChatColor.GREEN + "/fr testperm <player> <permission>" + ChatColor.WHITE + " - Test if a player has a specific permission");
+        sender.sendMessage(ChatColor.GREEN + "/fr migrate <yaml|sqlite>" + ChatColor.WHITE + " - Copy all data to another storage backend");
         sender.sendMessage(ChatColor.GREEN + "/user <username> [action] [arguments]" + ChatColor.WHITE + " - Manage users");
         sender.sendMessage(ChatColor.GREEN + "/group <groupname> [action] [arguments]" + ChatColor.WHITE + " - Manage groups");
         sender.sendMessage(ChatColor.GREEN + "/world <worldname>" + ChatColor.WHITE + " - Select a world");
@@ -464,6 +501,7 @@ public class MainCommand implements CommandExecutor, TabCompleter {
         sender.sendMessage(ChatColor.GREEN + "Description: " + ChatColor.WHITE + plugin.getDescription().getDescription());
         sender.sendMessage(ChatColor.GREEN + "Selected World: " + ChatColor.WHITE + plugin.getDataManager().getSelectedWorld());
         sender.sendMessage(ChatColor.GREEN + "Auto-Save: " + ChatColor.WHITE + plugin.getConfigManager().autoSave());
+        sender.sendMessage(ChatColor.GREEN + "Storage: " + ChatColor.WHITE + plugin.getDataManager().getStorageType());
         sender.sendMessage(ChatColor.GREEN + "Track Type: " + ChatColor.WHITE + plugin.getConfigManager().getTrackType());
         sender.sendMessage(ChatColor.GREEN + "Use Global Files: " + ChatColor.WHITE + plugin.getConfigManager().useGlobalFiles());
         sender.sendMessage(ChatColor.GREEN + "Use Global Users: " + ChatColor.WHITE + plugin.getConfigManager().useGlobalUsers());
@@ -489,6 +527,12 @@ public class MainCommand implements CommandExecutor, TabCompleter {
                 // Return online player names for player-based commands
                 return null; // Let Bukkit handle player name completion
             }
+            
+            if (subCommand.equals("migrate")) {
+                return Arrays.asList("yaml", "sqlite").stream()
+                        .filter(type -> type.startsWith(args[1].toLowerCase()))
+                        .collect(Collectors.toList());
+            }
         } else if (args.length == 3) {
             String subCommand = args[0].toLowerCase();
             
@@ -513,35 +557,18 @@ public class MainCommand implements CommandExecutor, TabCompleter {
     }
     
     /**
-     * Recursively checks if a group has a permission through inheritance.
+     * Checks if a group has a permission through inheritance.
      * 
      * @param world the world containing the groups
      * @param group the group to check
      * @param permission the permission to check for
-     * @param checked list of already checked groups to prevent infinite recursion
-     * @return true if the permission is found in any parent group
+     * @return true if the permission is found in any group the group inherits from
      */
-    private boolean checkInheritedPermission(World world, Group group, String permission, List<String> checked) {
-        // Prevent infinite recursion
-        if (checked.contains(group.getName())) {
-            return false;
-        }
-        
-        // Mark this group as checked
-        checked.add(group.getName());
-        
-        // First check if this group has the permission directly
-        if (group.hasPermission(permission)) {
-            return true;
-        }
-        
-        // Then check all parent groups
-        for (String parentName : group.getInheritance()) {
-            if (world.hasGroup(parentName)) {
-                Group parentGroup = world.getGroup(parentName);
-                if (checkInheritedPermission(world, parentGroup, permission, checked)) {
-                    return true;
-                }
+    private boolean checkInheritedPermission(World world, Group group, String permission) {
+        // The world keeps every inherited group in one list, so no recursion is needed
+        for (String parentName : world.getInheritedGroups(group.getName())) {
+            if (world.hasGroup(parentName) && world.getGroup(parentName).hasPermission(permission)) {
+                return true;
             }
         }
         
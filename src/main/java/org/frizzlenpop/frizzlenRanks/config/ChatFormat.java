@@ -0,0 +1,140 @@
+package org.frizzlenpop.frizzlenRanks.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chat format parsed once into literal text and placeholders.
+ * Rendering fills in the placeholders in a single pass, producing the format
+ * string for AsyncPlayerChatEvent#setFormat with the message as %2$s.
+ */
+public final class ChatFormat {
+    private static final int LITERAL = 0;
+    private static final int PREFIX = 1;
+    private static final int SUFFIX = 2;
+    private static final int WORLD = 3;
+    private static final int NAME = 4;
+
+    private static final String[] PLACEHOLDERS = {null, "{prefix}", "{suffix}", "{world}", "{name}"};
+    private static final String MESSAGE_PLACEHOLDER = "{message}";
+
+    // Each segment is either a literal with its text, or a placeholder with a null text
+    private final int[] kinds;
+    private final String[] literals;
+    private final int literalLength;
+
+    /**
+     * Parses a chat format. Color codes in the literal text are translated here,
+     * and {message} becomes the message argument of the event format.
+     *
+     * @param format the format from the config
+     */
+    public ChatFormat(String format) {
+        List<Integer> kindList = new ArrayList<>();
+        List<String> literalList = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+
+        int index = 0;
+        while (index < format.length()) {
+            int kind = LITERAL;
+            if (format.charAt(index) == '{') {
+                if (format.startsWith(MESSAGE_PLACEHOLDER, index)) {
+                    literal.append("%2$s");
+                    index += MESSAGE_PLACEHOLDER.length();
+                    continue;
+                }
+                for (int candidate = PREFIX; candidate < PLACEHOLDERS.length; candidate++) {
+                    if (format.startsWith(PLACEHOLDERS[candidate], index)) {
+                        kind = candidate;
+                        break;
+                    }
+                }
+            }
+
+            if (kind == LITERAL) {
+                char c = format.charAt(index);
+                literal.append(c == '&' ? '§' : c);
+                index++;
+                continue;
+            }
+
+            if (literal.length() > 0) {
+                kindList.add(LITERAL);
+                literalList.add(literal.toString());
+                literal.setLength(0);
+            }
+            kindList.add(kind);
+            literalList.add(null);
+            index += PLACEHOLDERS[kind].length();
+        }
+        if (literal.length() > 0) {
+            kindList.add(LITERAL);
+            literalList.add(literal.toString());
+        }
+
+        this.kinds = new int[kindList.size()];
+        this.literals = new String[literalList.size()];
+        int length = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = kindList.get(i);
+            literals[i] = literalList.get(i);
+            if (literals[i] != null) {
+                length += literals[i].length();
+            }
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Renders the format for a player.
+     *
+     * @param prefix the player's prefix, with color codes translated
+     * @param suffix the player's suffix, with color codes translated
+     * @param worldName the name of the player's world
+     * @param playerName the player's name
+     * @return the event format
+     */
+    public String render(String prefix, String suffix, String worldName, String playerName) {
+        StringBuilder builder = new StringBuilder(literalLength + prefix.length() + suffix.length() + 32);
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case PREFIX:
+                    appendEscaped(builder, prefix);
+                    break;
+                case SUFFIX:
+                    appendEscaped(builder, suffix);
+                    break;
+                case WORLD:
+                    appendEscaped(builder, worldName);
+                    break;
+                case NAME:
+                    appendEscaped(builder, playerName);
+                    break;
+                default:
+                    builder.append(literals[i]);
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Appends a value, doubling any % so it is not read as a format argument.
+     *
+     * @param builder the builder to append to
+     * @param value the value to append
+     */
+    private static void appendEscaped(StringBuilder builder, String value) {
+        if (value.indexOf('%') < 0) {
+            builder.append(value);
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            builder.append(c);
+            if (c == '%') {
+                builder.append('%');
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@ public class ConfigManager {
     private final FrizzlenRanks plugin;
     private FileConfiguration config;
     private File configFile;
+    private ChatFormat chatFormat;
     
     public ConfigManager(FrizzlenRanks plugin) {
         this.plugin = plugin;
@@ -39,12 +40,19 @@ public class ConfigManager {
         
         config = YamlConfiguration.loadConfiguration(configFile);
         setDefaults();
+        chatFormat = new ChatFormat(getChatFormat());
     }
     
     private void setDefaults() {
         config.addDefault("use-global-files", false);
         config.addDefault("use-global-users", true);
         config.addDefault("auto-save", true);
+        config.addDefault("save-delay", 40);
+        config.addDefault("user-cache-time", 600);
+        config.addDefault("storage", "yaml");
+        config.addDefault("journal", true);
+        config.addDefault("journal-sync-interval", 100);
+        config.addDefault("tab-update-budget", 2);
         config.addDefault("track-type", "single");
         config.addDefault("chat-format", "{prefix}&f{name}{suffix}&f: {message}");
         config.options().copyDefaults(true);
@@ -61,6 +69,7 @@ public class ConfigManager {
     
     public void reload() {
         config = YamlConfiguration.loadConfiguration(configFile);
+        chatFormat = new ChatFormat(getChatFormat());
     }
     
     public FileConfiguration getConfig() {
@@ -79,6 +88,79 @@ public class ConfigManager {
         return config.getBoolean("auto-save");
     }
     
+    /**
+     * Gets how long changes are collected before they are written to disk.
+     *
+     * @return the save delay in ticks
+     */
+    public long getSaveDelay() {
+        return Math.max(1L, config.getLong("save-delay", 40L));
+    }
+    
+    /**
+     * Gets how long an offline user stays in memory after it was last used.
+     *
+     * @return the idle time in seconds
+     */
+    public long getUserCacheTime() {
+        return Math.max(0L, config.getLong("user-cache-time", 600L));
+    }
+    
+    /**
+     * Gets the storage backend to keep groups and users in.
+     *
+     * @return "yaml" or "sqlite"
+     */
+    public String getStorageType() {
+        String type = config.getString("storage", "yaml").toLowerCase();
+        return type.equals("sqlite") ? type : "yaml";
+    }
+    
+    /**
+     * Checks if changes should be recorded in the journal until they are saved.
+     *
+     * @return true if the journal is enabled
+     */
+    public boolean useJournal() {
+        return config.getBoolean("journal", true);
+    }
+    
+    /**
+     * Checks if a binary snapshot of the data should be written on shutdown and used on startup.
+     *
+     * @return true if the snapshot is enabled
+     */
+    public boolean useSnapshot() {
+        return config.getBoolean("snapshot", true);
+    }
+    
+    /**
+     * Gets how often journaled changes are written and synced to disk.
+     *
+     * @return the interval in milliseconds
+     */
+    public long getJournalSyncInterval() {
+        return Math.max(1L, config.getLong("journal-sync-interval", 100L));
+    }
+    
+    /**
+     * Gets how much time each tick may spend updating tab displays when many players change at once.
+     *
+     * @return the budget in milliseconds
+     */
+    public long getTabUpdateBudget() {
+        return Math.max(1L, config.getLong("tab-update-budget", 2L));
+    }
+    
+    /**
+     * Gets how many threads load world data in parallel on startup and reload.
+     *
+     * @return the number of threads, at least 1
+     */
+    public int getLoadThreads() {
+        return Math.max(1, config.getInt("load-threads", 4));
+    }
+    
     public String getTrackType() {
         return config.getString("track-type");
     }
@@ -87,6 +169,15 @@ public class ConfigManager {
         return config.getString("chat-format", "{prefix}&f{name}{suffix}&f: {message}");
     }
     
+    /**
+     * Gets the chat format, parsed when the config was loaded.
+     *
+     * @return the parsed chat format
+     */
+    public ChatFormat getChatTemplate() {
+        return chatFormat;
+    }
+    
     /**
      * Applies default groups defined in the config to a world
      *
@@ -0,0 +1,301 @@
+package org.frizzlenpop.frizzlenRanks.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replaces data files atomically. New contents are written to a temporary file next to
+ * the target, forced to disk and renamed over the target, so a crash leaves either the
+ * old or the new file but never a truncated one.
+ *
+ * <p>Writes made by the thread that opened a batch are only staged: on
+ * {@link #commit()} all staged files are forced one after another, renamed into place,
+ * and each directory is synced once. A file written several times in one batch is only
+ * forced and renamed once. Writes from other threads, or outside a batch, are completed
+ * right away.</p>
+ */
+public class AtomicFileWriter {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Logger logger;
+
+    // Staged files of the open batch by target, and the thread that owns the batch
+    private final Map<File, File> staged;
+    private Thread batchOwner;
+
+    // Set when a write of the open batch fails before it is committed
+    private boolean batchFailed;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param logger the logger to report failed writes to
+     */
+    public AtomicFileWriter(Logger logger) {
+        this.logger = logger;
+        this.staged = new LinkedHashMap<>();
+    }
+
+    /**
+     * Starts a batch on the calling thread. Its writes are staged until {@link #commit()}.
+     */
+    public synchronized void beginBatch() {
+        batchOwner = Thread.currentThread();
+        batchFailed = false;
+    }
+
+    /**
+     * Reports a failed write to the open batch, so {@link #commit()} returns false.
+     * Used by writes of the batch that do not go through this writer.
+     */
+    public synchronized void failBatch() {
+        batchFailed = true;
+    }
+
+    /**
+     * Replaces a file with new text, encoded in UTF-8.
+     * Each write uses its own temporary file, so writes from other threads never
+     * touch a file staged in the open batch.
+     *
+     * @param file the file to replace
+     * @param contents the new contents
+     * @return false if the file could not be written; within a batch, the result of
+     *         the rename is reported by {@link #commit()}
+     */
+    public boolean write(File file, String contents) {
+        boolean batched;
+        synchronized (this) {
+            batched = batchOwner == Thread.currentThread();
+        }
+
+        File temp;
+        try {
+            temp = createTemp(file);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not save " + file.getPath(), e);
+            if (batched) {
+                failBatch();
+            }
+            return false;
+        }
+
+        try {
+            writeTemp(temp, contents.getBytes(StandardCharsets.UTF_8), !batched);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not save " + file.getPath(), e);
+            temp.delete();
+            if (batched) {
+                failBatch();
+            }
+            return false;
+        }
+
+        if (batched) {
+            File replaced;
+            synchronized (this) {
+                replaced = staged.put(file, temp);
+            }
+            // A file written again in the same batch only keeps its latest contents
+            if (replaced != null) {
+                replaced.delete();
+            }
+            return true;
+        }
+
+        if (!replace(temp, file)) {
+            return false;
+        }
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+        return true;
+    }
+
+    /**
+     * Forces every staged file to disk, renames them into place and syncs their
+     * directories, then ends the batch.
+     *
+     * @return true if every write of the batch reached its file
+     */
+    public boolean commit() {
+        List<Map.Entry<File, File>> files;
+        boolean success;
+        synchronized (this) {
+            files = new ArrayList<>(staged.entrySet());
+            staged.clear();
+            success = !batchFailed;
+            batchOwner = null;
+            batchFailed = false;
+        }
+        if (files.isEmpty()) {
+            return success;
+        }
+
+        // Force everything first, so the disk can work through the files in one go
+        List<Map.Entry<File, File>> written = new ArrayList<>(files.size());
+        for (Map.Entry<File, File> entry : files) {
+            try (FileChannel channel = FileChannel.open(entry.getValue().toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+                written.add(entry);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not save " + entry.getKey().getPath(), e);
+                entry.getValue().delete();
+                success = false;
+            }
+        }
+
+        Set<File> directories = new LinkedHashSet<>();
+        for (Map.Entry<File, File> entry : written) {
+            if (replace(entry.getValue(), entry.getKey())) {
+                directories.add(entry.getKey().getAbsoluteFile().getParentFile());
+            } else {
+                success = false;
+            }
+        }
+        for (File directory : directories) {
+            syncDirectory(directory);
+        }
+        return success;
+    }
+
+    /**
+     * Deletes temporary files left behind by a crash between writing and renaming them.
+     * Must only run while no write is in progress, such as before data is loaded.
+     *
+     * @param directory the directory to clean, including its subdirectories
+     * @return the number of files deleted
+     */
+    public int deleteTempFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        int deleted = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleted += deleteTempFiles(file);
+            } else if (file.getName().matches(".+\\.yml\\.[0-9]+\\" + TEMP_SUFFIX) && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Creates a new temporary file next to a target, named "&lt;name&gt;.&lt;number&gt;.tmp".
+     * It gets the target's permissions if the target exists, or the default permissions
+     * of new files otherwise, so replacing a file never changes who can read it.
+     *
+     * @param file the target
+     * @return the empty temporary file
+     * @throws IOException if the file cannot be created
+     */
+    private File createTemp(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+
+        Set<PosixFilePermission> permissions = null;
+        PosixFileAttributeView view = Files.getFileAttributeView(file.toPath(), PosixFileAttributeView.class);
+        if (view != null && file.exists()) {
+            permissions = view.readAttributes().permissions();
+        }
+
+        while (true) {
+            long number = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+            File temp = new File(directory, file.getName() + "." + number + TEMP_SUFFIX);
+            try {
+                Files.newOutputStream(temp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+
+            if (permissions != null) {
+                try {
+                    Files.setPosixFilePermissions(temp.toPath(), permissions);
+                } catch (IOException e) {
+                    temp.delete();
+                    throw e;
+                }
+            }
+            return temp;
+        }
+    }
+
+    /**
+     * Writes the contents of a temporary file in a single write.
+     *
+     * @param temp the temporary file
+     * @param data the contents
+     * @param force true to force the file to disk right away
+     * @throws IOException if the file cannot be written
+     */
+    private void writeTemp(File temp, byte[] data, boolean force) throws IOException {
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Renames a temporary file over its target.
+     *
+     * @param temp the temporary file
+     * @param file the target
+     * @return true if the file was replaced
+     */
+    private boolean replace(File temp, File file) {
+        try {
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not replace " + file.getPath(), e);
+            temp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Syncs a directory, so the renames in it survive a crash.
+     * Some platforms cannot open directories; the rename is still atomic there.
+     *
+     * @param directory the directory
+     */
+    private void syncDirectory(File directory) {
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on this platform
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
 import org.frizzlenpop.frizzlenRanks.model.Group;
+import org.frizzlenpop.frizzlenRanks.model.MutationLog;
 import org.frizzlenpop.frizzlenRanks.model.Track;
 import org.frizzlenpop.frizzlenRanks.model.User;
 import org.frizzlenpop.frizzlenRanks.model.World;
@@ -13,6 +14,16 @@ import org.frizzlenpop.frizzlenRanks.model.World;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 /**
@@ -22,7 +33,30 @@ public class DataManager {
     private final FrizzlenRanks plugin;
     private final Map<String, World> worlds;
     private final Map<String, Track> tracks;
-    private String selectedWorld;
+    private volatile String selectedWorld;
+    
+    // Worlds still being loaded in the background; a world is only put in the map above once fully loaded
+    private final Map<String, Future<World>> pendingWorlds;
+    
+    // Files are written on this thread so YAML serialization and disk access stay off the main thread
+    private final ExecutorService saveExecutor;
+    
+    // How long shutdown waits for the data snapshot before skipping it
+    private static final int SNAPSHOT_TIMEOUT_SECONDS = 30;
+    private boolean saveScheduled;
+    
+    // Replaces data files atomically; the files of one save are forced to disk together
+    private final AtomicFileWriter fileWriter;
+    private boolean tracksDirty;
+    
+    // Where groups and users are stored, chosen by the storage setting
+    private StorageBackend storage;
+    
+    // Records every change until it is saved, or null if the journal is disabled
+    private volatile MutationJournal journal;
+    
+    // Passed to every world; journals changes and schedules the expiry of temporary entries
+    private final MutationLog changeLog;
     
     /**
      * Creates a new DataManager.
@@ -31,36 +65,205 @@ public class DataManager {
      */
     public DataManager(FrizzlenRanks plugin) {
         this.plugin = plugin;
-        this.worlds = new HashMap<>();
+        // Concurrent so users can be preloaded from the async login thread
+        this.worlds = new ConcurrentHashMap<>();
+        this.pendingWorlds = new ConcurrentHashMap<>();
+        this.changeLog = this::recordMutation;
         this.tracks = new HashMap<>();
         this.selectedWorld = "global";
+        this.saveExecutor = createSaveExecutor();
+        this.fileWriter = new AtomicFileWriter(plugin.getLogger());
+    }
+    
+    /**
+     * Creates the single background thread that writes data files.
+     * 
+     * @return the executor
+     */
+    private ExecutorService createSaveExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FrizzlenRanks-Save");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
     
     /**
      * Loads all data from files.
+     * Worlds are loaded in parallel in the background. This only waits for the worlds
+     * players can be in right away; the others are published as soon as they are loaded,
+     * and a lookup of a world that is still loading waits for it.
      */
     public void loadAll() {
+        // Let a previous load finish, then write out pending changes so reloading does not lose them
+        awaitPendingWorlds();
+        flush();
+        
         // Clear existing data before reloading
         worlds.clear();
+        plugin.getExpiryScheduler().clear();
         tracks.clear();
         
         // Create data directories if they don't exist
         createDirectories();
         
-        // Load global data
-        loadWorld("global");
+        // Open the configured storage, switching backends if the config changed
+        String storageType = plugin.getConfigManager().getStorageType();
+        if (storage == null || !storage.getName().equals(storageType)) {
+            if (storage != null) {
+                storage.close();
+            }
+            storage = createStorage(storageType);
+            if (!storage.open()) {
+                plugin.getLogger().severe("Could not open " + storageType + " storage, falling back to yaml");
+                storage = new YamlStorage(plugin, fileWriter);
+                storage.open();
+            }
+            plugin.getLogger().info("Using " + storage.getName() + " storage");
+        }
+        
+        // Open the journal, also when it was turned off but still holds unsaved changes
+        File journalDir = new File(plugin.getDataFolder(), "journal");
+        if (journal == null && (plugin.getConfigManager().useJournal() || journalDir.isDirectory())) {
+            journal = new MutationJournal(plugin, journalDir, this::scheduleSave);
+            if (!journal.open(plugin.getConfigManager().getJournalSyncInterval())) {
+                journal = null;
+            }
+        }
         
-        // Load world-specific data if not using global files
+        // Load global data, and world-specific data if not using global files
+        List<String> worldNames = new ArrayList<>();
+        worldNames.add("global");
         if (!plugin.getConfigManager().useGlobalFiles()) {
             for (org.bukkit.World bukkitWorld : Bukkit.getWorlds()) {
-                loadWorld(bukkitWorld.getName());
+                String worldName = bukkitWorld.getName().toLowerCase();
+                if (!worldNames.contains(worldName)) {
+                    worldNames.add(worldName);
+                }
             }
         }
+        loadWorlds(worldNames, getJoinableWorlds());
         
         // Load tracks
         loadTracks();
         
-        plugin.getLogger().info("Loaded permission data for " + worlds.size() + " worlds and " + tracks.size() + " tracks");
+        // Apply changes that were journaled but not saved before the server stopped
+        if (journal != null) {
+            int replayed = journal.replay(this::applyMutation);
+            if (replayed > 0) {
+                plugin.getLogger().info("Replayed " + replayed + " unsaved changes from the journal");
+            }
+            
+            // Save the replayed changes, then drop the segments they came from
+            flush();
+            journal.deleteReplayed();
+            
+            if (!plugin.getConfigManager().useJournal()) {
+                closeJournal();
+            }
+        }
+        
+        int loading = pendingWorlds.size();
+        plugin.getLogger().info("Loaded permission data for " + worlds.size() + " worlds and " + tracks.size() + " tracks"
+                + (loading > 0 ? ", " + loading + " more worlds are loading in the background" : ""));
+    }
+    
+    /**
+     * Loads worlds on a bounded pool of background threads and waits for the required ones.
+     * Each world is built before anyone can see it and then published as a whole.
+     * 
+     * @param worldNames the lower-cased names of the worlds to load
+     * @param required the lower-cased names of the worlds to wait for
+     */
+    private void loadWorlds(List<String> worldNames, Set<String> required) {
+        long start = System.nanoTime();
+        int threads = Math.min(worldNames.size(), plugin.getConfigManager().getLoadThreads());
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService loader = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "FrizzlenRanks-Load-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        AtomicInteger remaining = new AtomicInteger(worldNames.size());
+        for (String worldName : worldNames) {
+            FutureTask<World> task = new FutureTask<>(() -> {
+                try {
+                    World world = buildWorld(worldName);
+                    publishWorld(world);
+                    return world;
+                } catch (RuntimeException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Could not load world " + worldName, e);
+                    throw e;
+                } finally {
+                    pendingWorlds.remove(worldName);
+                    if (remaining.decrementAndGet() == 0) {
+                        plugin.getLogger().info(String.format("Loaded %d worlds in %d ms",
+                                worldNames.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                    }
+                }
+            });
+            pendingWorlds.put(worldName, task);
+            loader.execute(task);
+        }
+        // The threads exit once the queued worlds are loaded
+        loader.shutdown();
+        
+        for (String worldName : required) {
+            awaitWorld(worldName);
+        }
+    }
+    
+    /**
+     * Gets the worlds players can be in as soon as the server is up: the global data,
+     * the default world new players spawn in, and the worlds of players already online.
+     * 
+     * @return the lower-cased world names
+     */
+    private Set<String> getJoinableWorlds() {
+        Set<String> joinable = new HashSet<>();
+        joinable.add("global");
+        if (plugin.getConfigManager().useGlobalFiles()) {
+            return joinable;
+        }
+        
+        List<org.bukkit.World> bukkitWorlds = Bukkit.getWorlds();
+        if (!bukkitWorlds.isEmpty()) {
+            joinable.add(bukkitWorlds.get(0).getName().toLowerCase());
+        }
+        for (org.bukkit.entity.Player player : Bukkit.getOnlinePlayers()) {
+            joinable.add(player.getWorld().getName().toLowerCase());
+        }
+        return joinable;
+    }
+    
+    /**
+     * Waits for a world that is loading in the background, if it is.
+     * 
+     * @param lowerName the lower-cased name of the world
+     */
+    private void awaitWorld(String lowerName) {
+        Future<World> pending = pendingWorlds.get(lowerName);
+        if (pending == null) {
+            return;
+        }
+        
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already logged by the loader; the world is created empty when it is next used
+        }
+    }
+    
+    /**
+     * Waits for every world that is loading in the background.
+     */
+    private void awaitPendingWorlds() {
+        for (String worldName : new ArrayList<>(pendingWorlds.keySet())) {
+            awaitWorld(worldName);
+        }
     }
     
     /**
@@ -90,158 +293,222 @@ public class DataManager {
      */
     public void loadWorld(String worldName) {
         String lowerWorldName = worldName.toLowerCase();
+        awaitWorld(lowerWorldName);
         
         // Check if the world is already loaded
-        boolean worldExists = worlds.containsKey(lowerWorldName);
-        World world;
-        
-        if (worldExists) {
-            // World exists - get it but clear its groups to force reload
-            world = worlds.get(lowerWorldName);
-            world.clearGroups(); // Force groups to be reloaded
-            plugin.getLogger().info("Clearing existing groups for world: " + lowerWorldName);
-        } else {
-            // Create a new world
-            world = new World(lowerWorldName);
-            worlds.put(lowerWorldName, world);
-            
-            if (selectedWorld == null) {
-                selectedWorld = lowerWorldName;
-            }
+        World world = worlds.get(lowerWorldName);
+        if (world == null) {
+            publishWorld(buildWorld(lowerWorldName));
+            return;
         }
         
-        // Create the world directory if it doesn't exist
-        File worldDir;
-        if (lowerWorldName.equalsIgnoreCase("global")) {
-            worldDir = new File(plugin.getDataFolder(), "global");
-        } else {
-            worldDir = new File(plugin.getDataFolder(), "worlds/" + lowerWorldName);
-        }
+        // World exists - clear its groups to force reload
+        world.setMutationLog(null); // Reloaded groups are not changes
+        world.clearGroups(); // Force groups to be reloaded
+        plugin.getLogger().info("Clearing existing groups for world: " + lowerWorldName);
         
-        if (!worldDir.exists()) {
-            worldDir.mkdirs();
-        }
+        loadGroups(world);
+        scheduleExpiries(lowerWorldName);
         
-        // Log the directory we're looking in
-        plugin.getLogger().info("Loading data for world '" + lowerWorldName + "' from: " + worldDir.getAbsolutePath());
+        // Everything just came from disk, so nothing needs to be written back
+        world.clearDirty();
+        world.setMutationLog(changeLog);
+    }
+    
+    /**
+     * Creates a world and loads its groups, without making it visible to anyone.
+     * Safe to call on a loader thread.
+     * 
+     * @param lowerName the lower-cased name of the world
+     * @return the loaded world
+     */
+    private World buildWorld(String lowerName) {
+        World world = newWorld(lowerName);
+        loadGroups(world);
         
-        // Load groups
-        File groupsFile = new File(worldDir, "groups.yml");
-        if (groupsFile.exists()) {
-            plugin.getLogger().info("Loading groups from: " + groupsFile.getAbsolutePath());
-            loadGroups(world, groupsFile);
+        // Everything just came from disk, so nothing needs to be written back
+        world.clearDirty();
+        return world;
+    }
+    
+    /**
+     * Makes a fully loaded world visible and starts recording its changes.
+     * 
+     * @param world the world built by {@link #buildWorld(String)}
+     */
+    private void publishWorld(World world) {
+        world.setMutationLog(changeLog);
+        worlds.put(world.getName(), world);
+        scheduleExpiries(world.getName());
+    }
+    
+    /**
+     * Loads the groups of a world from storage, or applies and saves the default groups
+     * if none are stored yet.
+     * 
+     * @param world the world to load into
+     */
+    private void loadGroups(World world) {
+        plugin.getLogger().fine("Loading data for world '" + world.getName() + "' from " + storage.getName() + " storage");
+        
+        if (storage.hasGroups(world.getName())) {
+            storage.loadGroups(world);
         } else {
-            plugin.getLogger().info("Groups file not found at: " + groupsFile.getAbsolutePath());
+            plugin.getLogger().info("No stored groups for world " + world.getName() + ", applying defaults");
             // Apply default groups from the config
             plugin.getConfigManager().applyDefaultGroups(world);
             
-            // Save the groups file
-            saveGroups(world, groupsFile);
+            // Save the groups
+            storage.saveGroups(world).run();
         }
-        
-        // Load users
-        File usersFile = new File(worldDir, "users.yml");
-        if (usersFile.exists()) {
-            loadUsers(world, usersFile);
+    }
+    
+    /**
+     * Schedules the stored expiries of a world's users.
+     * Users are loaded from storage when first needed; only their expiries are read now.
+     * 
+     * @param lowerName the lower-cased name of the world
+     */
+    private void scheduleExpiries(String lowerName) {
+        for (Map.Entry<String, Long> entry : storage.getExpiries(lowerName).entrySet()) {
+            plugin.getExpiryScheduler().schedule(lowerName, entry.getKey(), entry.getValue());
         }
     }
     
     /**
-     * Loads groups from a file.
+     * Receives every change made in a world. Changes are journaled, and new
+     * temporary entries are scheduled to expire.
      * 
-     * @param world the world to load groups into
-     * @param file the file to load from
+     * @param worldName the lower-cased world name
+     * @param type the kind of change
+     * @param owner the lower-cased name of the changed user or group
+     * @param key the permission, group or meta key, or null
+     * @param value the new value, or null
+     * @param number the expiration time or priority, or 0
      */
-    private void loadGroups(World world, File file) {
-        FileConfiguration config = YamlConfiguration.loadConfiguration(file);
-        ConfigurationSection groupsSection = config.getConfigurationSection("groups");
-        
-        if (groupsSection == null) {
-            plugin.getLogger().warning("No groups section found in " + file.getPath());
-            return;
+    private void recordMutation(String worldName, MutationLog.Type type, String owner, String key, String value, long number) {
+        MutationJournal currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.record(worldName, type, owner, key, value, number);
         }
         
-        int groupsLoaded = 0;
-        for (String groupName : groupsSection.getKeys(false)) {
-            Group group = world.getGroup(groupName);
-            ConfigurationSection groupSection = groupsSection.getConfigurationSection(groupName);
-            
-            if (groupSection == null) {
-                continue;
-            }
-            
-            // Load permissions
-            List<String> permissions = groupSection.getStringList("permissions");
-            for (String permission : permissions) {
-                group.addPermission(permission);
-            }
-            
-            // Load inheritance
-            List<String> inheritance = groupSection.getStringList("inheritance");
-            for (String parent : inheritance) {
-                group.addInheritance(parent);
-            }
-            
-            // Load priority
-            group.setPriority(groupSection.getInt("priority", 0));
-            
-            // Load metadata
-            ConfigurationSection metaSection = groupSection.getConfigurationSection("meta");
-            if (metaSection != null) {
-                for (String key : metaSection.getKeys(false)) {
-                    group.setMeta(key, metaSection.getString(key));
-                }
-            }
-            
-            groupsLoaded++;
-            plugin.getLogger().info("Loaded group: " + groupName + " with " + permissions.size() + 
-                                   " permissions and prefix: " + group.getMeta("prefix"));
+        if (type == MutationLog.Type.USER_ADD_TEMPORARY_PERMISSION || type == MutationLog.Type.USER_ADD_TEMPORARY_GROUP) {
+            plugin.getExpiryScheduler().schedule(worldName, owner, number);
         }
+    }
+    
+    /**
+     * Saves everything and removes the journal after it was turned off in the config.
+     */
+    private void closeJournal() {
+        MutationJournal closing = journal;
+        flush();
+        journal = null;
+        closing.close();
         
-        plugin.getLogger().info("Loaded " + groupsLoaded + " groups for world " + world.getName() + " from " + file.getPath());
+        // A failed save leaves the journal in place, so it is opened and replayed on the next start
+        if (!closing.isRetaining()) {
+            closing.deleteAll();
+        }
     }
     
     /**
-     * Loads users from a file.
+     * Applies a change read back from the journal.
      * 
-     * @param world the world to load users into
-     * @param file the file to load from
+     * @param worldName the lower-cased world name, or an empty string for tracks
+     * @param type the kind of change
+     * @param owner the lower-cased name of the changed user, group or track
+     * @param key the permission, group or meta key, or null
+     * @param value the new value, or null
+     * @param number the expiration time or priority, or 0
      */
-    private void loadUsers(World world, File file) {
-        FileConfiguration config = YamlConfiguration.loadConfiguration(file);
-        ConfigurationSection usersSection = config.getConfigurationSection("users");
-        
-        if (usersSection == null) {
+    private void applyMutation(String worldName, MutationLog.Type type, String owner, String key, String value, long number) {
+        if (type == MutationLog.Type.TRACK_CREATE) {
+            if (getTrack(owner) == null) {
+                createTrack(owner);
+            }
+            return;
+        }
+        if (type == MutationLog.Type.TRACK_REMOVE) {
+            removeTrack(owner);
             return;
         }
         
-        for (String userName : usersSection.getKeys(false)) {
-            User user = world.getUser(userName);
-            ConfigurationSection userSection = usersSection.getConfigurationSection(userName);
-            
-            if (userSection == null) {
-                continue;
-            }
-            
-            // Load permissions
-            List<String> permissions = userSection.getStringList("permissions");
-            for (String permission : permissions) {
-                user.addPermission(permission);
-            }
-            
-            // Load groups
-            List<String> groups = userSection.getStringList("groups");
-            for (String group : groups) {
-                user.addGroup(group);
-            }
-            
-            // Load metadata
-            ConfigurationSection metaSection = userSection.getConfigurationSection("meta");
-            if (metaSection != null) {
-                for (String key : metaSection.getKeys(false)) {
-                    user.setMeta(key, metaSection.getString(key));
-                }
-            }
+        awaitWorld(worldName);
+        if (!worlds.containsKey(worldName)) {
+            loadWorld(worldName);
+        }
+        World world = worlds.get(worldName);
+        
+        switch (type) {
+            case USER_ADD_PERMISSION:
+                world.getUser(owner).addPermission(key);
+                break;
+            case USER_REMOVE_PERMISSION:
+                world.getUser(owner).removePermission(key);
+                break;
+            case USER_ADD_TEMPORARY_PERMISSION:
+                world.getUser(owner).addTemporaryPermission(key, number);
+                break;
+            case USER_REMOVE_TEMPORARY_PERMISSION:
+                world.getUser(owner).removeTemporaryPermission(key);
+                break;
+            case USER_ADD_GROUP:
+                world.getUser(owner).addGroup(key);
+                break;
+            case USER_REMOVE_GROUP:
+                world.getUser(owner).removeGroup(key);
+                break;
+            case USER_ADD_TEMPORARY_GROUP:
+                world.getUser(owner).addTemporaryGroup(key, number);
+                break;
+            case USER_REMOVE_TEMPORARY_GROUP:
+                world.getUser(owner).removeTemporaryGroup(key);
+                break;
+            case USER_SET_GROUPS:
+                world.getUser(owner).setGroups(value.isEmpty() ? new ArrayList<>() : Arrays.asList(value.split(",")));
+                break;
+            case USER_SET_META:
+                world.getUser(owner).setMeta(key, value);
+                break;
+            case USER_CLEAR_PERMISSIONS:
+                world.getUser(owner).clearPermissions();
+                break;
+            case USER_CLEAR_GROUPS:
+                world.getUser(owner).clearGroups();
+                break;
+            case USER_CLEAR_META:
+                world.getUser(owner).clearMeta();
+                break;
+            case USER_REMOVE:
+                world.removeUser(owner);
+                break;
+            case GROUP_CREATE:
+                world.getGroup(owner);
+                break;
+            case GROUP_ADD_PERMISSION:
+                world.getGroup(owner).addPermission(key);
+                break;
+            case GROUP_REMOVE_PERMISSION:
+                world.getGroup(owner).removePermission(key);
+                break;
+            case GROUP_ADD_INHERITANCE:
+                world.getGroup(owner).addInheritance(key);
+                break;
+            case GROUP_REMOVE_INHERITANCE:
+                world.getGroup(owner).removeInheritance(key);
+                break;
+            case GROUP_SET_PRIORITY:
+                world.getGroup(owner).setPriority((int) number);
+                break;
+            case GROUP_SET_META:
+                world.getGroup(owner).setMeta(key, value);
+                break;
+            case GROUP_REMOVE:
+                world.removeGroup(owner);
+                break;
+            default:
+                break;
         }
     }
     
@@ -256,6 +523,21 @@ public class DataManager {
             return;
         }
         
+        // Use the snapshot if tracks.yml was not changed since it was written
+        if (storage instanceof YamlStorage) {
+            Map<String, List<String>> snapshotTracks = ((YamlStorage) storage).getSnapshotTracks(tracksFile);
+            if (snapshotTracks != null) {
+                for (Map.Entry<String, List<String>> entry : snapshotTracks.entrySet()) {
+                    Track track = new Track(entry.getKey());
+                    for (String group : entry.getValue()) {
+                        track.addGroup(group);
+                    }
+                    tracks.put(track.getName(), track);
+                }
+                return;
+            }
+        }
+        
         FileConfiguration config = YamlConfiguration.loadConfiguration(tracksFile);
         ConfigurationSection tracksSection = config.getConfigurationSection("tracks");
         
@@ -292,111 +574,289 @@ public class DataManager {
     }
     
     /**
-     * Saves all data to files.
+     * Saves all changed data to files.
+     * The files are written in the background once the configured save delay has
+     * passed, together with any other changes made in the meantime.
      */
     public void saveAll() {
-        for (World world : worlds.values()) {
-            saveWorld(world);
-        }
-        
-        saveTracks(new File(plugin.getDataFolder(), "tracks.yml"));
-        
-        plugin.getLogger().info("Saved permission data for " + worlds.size() + " worlds and " + tracks.size() + " tracks");
+        scheduleSave();
     }
     
     /**
-     * Saves data for a specific world.
+     * Saves the changed data of a specific world.
+     * The files are written in the background once the configured save delay has passed.
      * 
      * @param world the world to save
      */
     public void saveWorld(World world) {
-        // Determine the directory to save to
-        File directory;
-        if (world.getName().equalsIgnoreCase("global")) {
-            directory = new File(plugin.getDataFolder(), "global");
-        } else {
-            directory = new File(plugin.getDataFolder(), "worlds/" + world.getName());
+        scheduleSave();
+    }
+    
+    /**
+     * Schedules a write of all changed data unless one is already pending.
+     */
+    private synchronized void scheduleSave() {
+        if (saveScheduled) {
+            return;
         }
+        saveScheduled = true;
         
-        if (!directory.exists()) {
-            directory.mkdirs();
+        // Collect the changes on the main thread, where the data is modified
+        Bukkit.getScheduler().runTaskLater(plugin, () -> writeChanges(false), plugin.getConfigManager().getSaveDelay());
+    }
+    
+    /**
+     * Writes all changed worlds and tracks to disk.
+     * The data is copied into configurations on the calling thread; the files are
+     * then written in the background, or right away if requested.
+     * 
+     * @param synchronous true to write the files on the calling thread
+     */
+    private void writeChanges(boolean synchronous) {
+        synchronized (this) {
+            saveScheduled = false;
+        }
+        
+        // Start a new journal segment; everything recorded before this point is part of this save.
+        // Only the records are handed over here, the segment files are switched on the save thread.
+        MutationJournal currentJournal = journal;
+        long journalSegment = currentJournal != null ? currentJournal.rotate() : -1;
+        if (journalSegment >= 0) {
+            submit(currentJournal::switchSegment, synchronous);
+        }
+        
+        // The files of this save are staged, then forced and renamed into place together
+        submit(fileWriter::beginBatch, synchronous);
+        
+        // Set by any write of this save that fails; all writes run on one thread in order
+        AtomicBoolean failed = new AtomicBoolean();
+        
+        int written = 0;
+        for (World world : worlds.values()) {
+            if (!world.isDirty()) {
+                continue;
+            }
+            
+            if (world.takeGroupsDirty()) {
+                submit(storage.saveGroups(world), failed, synchronous);
+                written++;
+            }
+            // Only the users that changed are rewritten; removed users are deleted
+            for (String userName : world.takeDirtyUsers()) {
+                if (world.isUserLoaded(userName)) {
+                    submit(storage.saveUser(world.getName(), world.getUser(userName)), failed, synchronous);
+                } else {
+                    submit(storage.deleteUser(world.getName(), userName), failed, synchronous);
+                }
+                written++;
+            }
         }
         
-        // Save groups
-        File groupsFile = new File(directory, "groups.yml");
-        saveGroups(world, groupsFile);
+        boolean saveTracks;
+        synchronized (this) {
+            saveTracks = tracksDirty;
+            tracksDirty = false;
+        }
+        if (saveTracks) {
+            submit(buildTracks(new File(plugin.getDataFolder(), "tracks.yml")), failed, synchronous);
+            written++;
+        }
         
-        // Save users
-        File usersFile = new File(directory, "users.yml");
-        saveUsers(world, usersFile);
+        submit(fileWriter::commit, failed, synchronous);
+        
+        // The closed segments are dropped only after the data they describe is written;
+        // if anything failed they are kept and replayed on the next start
+        if (currentJournal != null) {
+            submit(() -> {
+                if (failed.get()) {
+                    if (!currentJournal.isRetaining()) {
+                        plugin.getLogger().severe("Some changes could not be saved; the journal is kept and replayed on the next start");
+                    }
+                    currentJournal.retainSegments();
+                } else if (journalSegment >= 0) {
+                    currentJournal.deleteThrough(journalSegment);
+                }
+            }, synchronous);
+        }
+        
+        if (written > 0) {
+            plugin.getLogger().fine("Saved " + written + " changed records");
+        }
     }
     
     /**
-     * Saves groups to a file.
+     * Runs a write task on the save thread, or right away if requested.
+     * Tasks run in the order they were submitted.
      * 
-     * @param world the world to save groups from
-     * @param file the file to save to
+     * @param task the write task
+     * @param synchronous true to run on the calling thread instead of the save thread
      */
-    private void saveGroups(World world, File file) {
-        FileConfiguration config = new YamlConfiguration();
-        ConfigurationSection groupsSection = config.createSection("groups");
-        
-        for (Group group : world.getGroups()) {
-            ConfigurationSection groupSection = groupsSection.createSection(group.getName());
-            
-            // Save permissions
-            groupSection.set("permissions", new ArrayList<>(group.getPermissions()));
-            
-            // Save inheritance
-            groupSection.set("inheritance", new ArrayList<>(group.getInheritance()));
-            
-            // Save priority
-            groupSection.set("priority", group.getPriority());
-            
-            // Save metadata
-            ConfigurationSection metaSection = groupSection.createSection("meta");
-            for (Map.Entry<String, String> entry : group.getMeta().entrySet()) {
-                metaSection.set(entry.getKey(), entry.getValue());
+    private void submit(Runnable task, boolean synchronous) {
+        if (synchronous) {
+            task.run();
+        } else {
+            saveExecutor.execute(task);
+        }
+    }
+    
+    /**
+     * Runs a write task like {@link #submit(Runnable, boolean)}, noting if it fails.
+     * 
+     * @param task the write task
+     * @param failed set if the task fails
+     * @param synchronous true to run on the calling thread instead of the save thread
+     */
+    private void submit(SaveTask task, AtomicBoolean failed, boolean synchronous) {
+        submit(() -> {
+            if (!task.run()) {
+                failed.set(true);
             }
+        }, synchronous);
+    }
+    
+    /**
+     * Creates a storage backend by its config name.
+     * 
+     * @param type the backend name, "yaml" or "sqlite"
+     * @return the new, unopened backend
+     */
+    private StorageBackend createStorage(String type) {
+        if (type.equalsIgnoreCase("sqlite")) {
+            return new SqlStorage(plugin, new File(plugin.getDataFolder(), "data.db"));
+        }
+        return new YamlStorage(plugin, fileWriter);
+    }
+    
+    /**
+     * Copies everything in the current storage into another backend.
+     * Pending changes should be flushed first. Runs on the calling thread.
+     * 
+     * @param targetType the name of the backend to copy into
+     * @return the number of users copied, or -1 if the target could not be opened
+     */
+    public int migrateStorage(String targetType) {
+        StorageBackend target = createStorage(targetType);
+        if (!target.open()) {
+            return -1;
         }
         
+        int migrated = 0;
         try {
-            config.save(file);
-        } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Could not save groups to " + file.getPath(), e);
+            for (String worldName : storage.getWorldNames()) {
+                if (storage.hasGroups(worldName)) {
+                    World world = new World(worldName);
+                    storage.loadGroups(world);
+                    target.saveGroups(world).run();
+                }
+                
+                for (String userName : storage.getUserNames(worldName)) {
+                    User user = new User(userName);
+                    if (storage.loadUser(worldName, user)) {
+                        target.saveUser(worldName, user).run();
+                        migrated++;
+                    }
+                }
+            }
+        } finally {
+            target.close();
         }
+        
+        plugin.getLogger().info("Migrated " + migrated + " users from " + storage.getName() + " to " + target.getName() + " storage");
+        return migrated;
     }
     
     /**
-     * Saves users to a file.
+     * Gets the name of the storage backend in use.
      * 
-     * @param world the world to save users from
-     * @param file the file to save to
+     * @return the backend name
      */
-    private void saveUsers(World world, File file) {
-        FileConfiguration config = new YamlConfiguration();
-        ConfigurationSection usersSection = config.createSection("users");
+    public String getStorageType() {
+        return storage.getName();
+    }
+    
+    /**
+     * Waits until all background writes submitted so far have finished.
+     */
+    private void awaitPendingWrites() {
+        try {
+            saveExecutor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Background save failed", e);
+        }
+    }
+    
+    /**
+     * Writes all pending changes to disk and waits for every background write.
+     * Used when the plugin is disabled or before data is reloaded from disk.
+     */
+    public void flush() {
+        awaitPendingWrites();
+        writeChanges(true);
+    }
+    
+    /**
+     * Flushes all pending changes and stops the background save thread.
+     */
+    public void shutdown() {
+        awaitPendingWorlds();
+        flush();
         
-        for (User user : world.getUsers()) {
-            ConfigurationSection userSection = usersSection.createSection(user.getName());
-            
-            // Save permissions
-            userSection.set("permissions", new ArrayList<>(user.getPermissions()));
-            
-            // Save groups
-            userSection.set("groups", new ArrayList<>(user.getGroups()));
-            
-            // Save metadata
-            ConfigurationSection metaSection = userSection.createSection("meta");
-            for (Map.Entry<String, String> entry : user.getMeta().entrySet()) {
-                metaSection.set(entry.getKey(), entry.getValue());
+        // Everything is saved now, so the snapshot matches the files it is written after
+        if (storage instanceof YamlStorage && plugin.getConfigManager().useSnapshot()) {
+            writeSnapshot((YamlStorage) storage);
+        }
+        saveExecutor.shutdown();
+        awaitTermination();
+        if (journal != null) {
+            journal.close();
+        }
+        if (storage != null) {
+            storage.close();
+        }
+    }
+    
+    /**
+     * Builds the snapshot on the save thread and waits for it. A snapshot that cannot be
+     * finished in time is cancelled and skipped, so the journal and storage are never
+     * closed while it still runs; the next start then reads the YAML files.
+     * 
+     * @param yamlStorage the storage to write the snapshot of
+     */
+    private void writeSnapshot(YamlStorage yamlStorage) {
+        List<World> loadedWorlds = new ArrayList<>(worlds.values());
+        List<Track> loadedTracks = new ArrayList<>(tracks.values());
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Future<?> snapshot = saveExecutor.submit(() -> yamlStorage.writeSnapshot(loadedWorlds, loadedTracks, cancelled));
+        try {
+            try {
+                snapshot.get(SNAPSHOT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                cancelled.set(true);
+                plugin.getLogger().warning("Skipped the data snapshot, as it could not be written within "
+                        + SNAPSHOT_TIMEOUT_SECONDS + " seconds");
+                // Stops at the next user, so this does not wait long
+                snapshot.get();
             }
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not write the data snapshot", e.getCause());
         }
-        
+    }
+    
+    /**
+     * Waits for the save thread to finish after it was shut down.
+     */
+    private void awaitTermination() {
         try {
-            config.save(file);
-        } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Could not save users to " + file.getPath(), e);
+            if (!saveExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Timed out waiting for the save thread to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
     
@@ -406,18 +866,24 @@ public class DataManager {
      * @param file the file to save to
      */
     private void saveTracks(File file) {
+        buildTracks(file).run();
+    }
+    
+    /**
+     * Copies the tracks into a new configuration.
+     * 
+     * @param file the file to save to
+     * @return the task that writes the copied tracks
+     */
+    private SaveTask buildTracks(File file) {
         FileConfiguration config = new YamlConfiguration();
         ConfigurationSection tracksSection = config.createSection("tracks");
         
         for (Track track : tracks.values()) {
-            tracksSection.set(track.getName(), track.getGroups());
+            tracksSection.set(track.getName(), new ArrayList<>(track.getGroups()));
         }
         
-        try {
-            config.save(file);
-        } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Could not save tracks to " + file.getPath(), e);
-        }
+        return () -> fileWriter.write(file, config.saveToString());
     }
     
     /**
@@ -432,16 +898,127 @@ public class DataManager {
         }
         
         String lowerName = worldName.toLowerCase();
-        if (worlds.containsKey(lowerName)) {
-            return worlds.get(lowerName);
+        World world = worlds.get(lowerName);
+        if (world != null) {
+            return world;
         }
         
+        // A world still loading in the background is waited for rather than created empty
+        awaitWorld(lowerName);
+        
         // If the world doesn't exist, create it
+        return worlds.computeIfAbsent(lowerName, name -> {
+            World created = newWorld(name);
+            created.setMutationLog(changeLog);
+            return created;
+        });
+    }
+    
+    /**
+     * Creates a world whose users are loaded from storage on demand.
+     * The world is not added to the loaded worlds.
+     * 
+     * @param lowerName the lower-cased name of the world
+     * @return the new world
+     */
+    private World newWorld(String lowerName) {
         World world = new World(lowerName);
-        worlds.put(lowerName, world);
+        world.setUserLoader(user -> storage.loadUser(lowerName, user));
         return world;
     }
     
+    /**
+     * Gets a world only if it is already loaded. Never loads or creates a world,
+     * so it is safe on async threads such as chat.
+     * 
+     * @param worldName the name of the world, or null for the selected world
+     * @return the world, or null if it is not loaded
+     */
+    public World getLoadedWorld(String worldName) {
+        if (plugin.getConfigManager().useGlobalFiles()) {
+            return worlds.get("global");
+        }
+        return worlds.get(worldName != null ? worldName.toLowerCase() : selectedWorld);
+    }
+    
+    /**
+     * Gets a world for a read made through an API such as Vault. On the main thread the
+     * world is loaded if needed; off it only a world that is already loaded is returned,
+     * so async callers never load data or wait on a lock.
+     * 
+     * @param worldName the name of the world, or null for the selected world
+     * @return the world, or null if it is not loaded and the caller is not on the main thread
+     */
+    public World getReadableWorld(String worldName) {
+        if (!Bukkit.isPrimaryThread()) {
+            return getLoadedWorld(worldName);
+        }
+        if (worldName == null && !plugin.getConfigManager().useGlobalFiles()) {
+            return getSelectedWorldObj();
+        }
+        return getWorld(worldName);
+    }
+    
+    /**
+     * Gets a user for a read, like {@link #getReadableWorld(String)}. On the main thread
+     * the user is loaded from storage if needed; off it only a user already in memory is returned.
+     * 
+     * @param worldName the name of the world, or null for the selected world
+     * @param userName the name of the user
+     * @return the user, or null if it does not exist or is not loaded
+     */
+    public User getReadableUser(String worldName, String userName) {
+        World world = getReadableWorld(worldName);
+        if (world == null) {
+            return null;
+        }
+        if (!Bukkit.isPrimaryThread()) {
+            return world.getLoadedUser(userName);
+        }
+        return world.hasUser(userName) ? world.getUser(userName) : null;
+    }
+    
+    /**
+     * Applies a change to users or groups on the main thread, which makes all changes.
+     * A change requested from another thread runs on the next tick, so async readers
+     * only ever see data changed by a single writer.
+     * 
+     * @param change the change to apply
+     */
+    public void applyChange(Runnable change) {
+        if (Bukkit.isPrimaryThread()) {
+            change.run();
+        } else {
+            Bukkit.getScheduler().runTask(plugin, change);
+        }
+    }
+    
+    /**
+     * Loads a user into every world ahead of time, so the first lookup on the main thread
+     * does not have to read from disk. Safe to call from any thread.
+     * 
+     * @param userName the name of the user
+     */
+    public void preloadUser(String userName) {
+        for (World world : worlds.values()) {
+            world.hasUser(userName);
+        }
+    }
+    
+    /**
+     * Unloads offline users that have not been used for the configured time.
+     * 
+     * @return the number of users unloaded
+     */
+    public int evictIdleUsers() {
+        long idleSince = System.currentTimeMillis() - plugin.getConfigManager().getUserCacheTime() * 1000L;
+        int evicted = 0;
+        for (World world : worlds.values()) {
+            evicted += world.evictUsers(idleSince, userName -> Bukkit.getPlayerExact(userName) != null);
+        }
+        return evicted;
+    }
+    
     /**
      * Gets a track by name.
      * 
@@ -470,6 +1047,12 @@ public class DataManager {
     public Track createTrack(String trackName) {
         Track track = new Track(trackName);
         tracks.put(trackName.toLowerCase(), track);
+        if (journal != null) {
+            journal.record("", MutationLog.Type.TRACK_CREATE, track.getName(), null, null, 0);
+        }
+        synchronized (this) {
+            tracksDirty = true;
+        }
         return track;
     }
     
@@ -480,6 +1063,12 @@ public class DataManager {
      * @return true if the track was found and removed
      */
     public boolean removeTrack(String trackName) {
+        synchronized (this) {
+            tracksDirty = true;
+        }
+        if (journal != null) {
+            journal.record("", MutationLog.Type.TRACK_REMOVE, trackName.toLowerCase(), null, null, 0);
+        }
         return tracks.remove(trackName.toLowerCase()) != null;
     }
     
@@ -520,6 +1109,8 @@ public class DataManager {
     
     /**
      * Synchronizes a user across all worlds if global users is enabled.
+     * Temporary groups and permissions stay temporary with their expiry, and a world
+     * whose copy of the user already matches is left untouched.
      * 
      * @param sourceWorld the world the user was updated in
      * @param userName the name of the user to synchronize
@@ -537,24 +1128,43 @@ public class DataManager {
             }
             
             User targetUser = targetWorld.getUser(userName);
+            boolean synced = false;
             
             // Sync groups
-            targetUser.setGroups(sourceUser.getGroups());
+            if (!targetUser.getPermanentGroups().equals(sourceUser.getPermanentGroups())
+                    || !targetUser.getTemporaryGroups().equals(sourceUser.getTemporaryGroups())) {
+                targetUser.clearGroups();
+                targetUser.setGroups(sourceUser.getPermanentGroups());
+                for (Map.Entry<String, Long> entry : sourceUser.getTemporaryGroups().entrySet()) {
+                    targetUser.addTemporaryGroup(entry.getKey(), entry.getValue());
+                }
+                synced = true;
+            }
             
             // Sync permissions
-            targetUser.clearPermissions();
-            for (String permission : sourceUser.getPermissions()) {
-                targetUser.addPermission(permission);
+            if (!targetUser.getPermanentPermissions().equals(sourceUser.getPermanentPermissions())
+                    || !targetUser.getTemporaryPermissions().equals(sourceUser.getTemporaryPermissions())) {
+                targetUser.clearPermissions();
+                for (String permission : sourceUser.getPermanentPermissions()) {
+                    targetUser.addPermission(permission);
+                }
+                for (Map.Entry<String, Long> entry : sourceUser.getTemporaryPermissions().entrySet()) {
+                    targetUser.addTemporaryPermission(entry.getKey(), entry.getValue());
+                }
+                synced = true;
             }
             
             // Sync metadata
-            targetUser.clearMeta();
-            for (Map.Entry<String, String> entry : sourceUser.getMeta().entrySet()) {
-                targetUser.setMeta(entry.getKey(), entry.getValue());
+            if (!targetUser.getMeta().equals(sourceUser.getMeta())) {
+                targetUser.clearMeta();
+                for (Map.Entry<String, String> entry : sourceUser.getMeta().entrySet()) {
+                    targetUser.setMeta(entry.getKey(), entry.getValue());
+                }
+                synced = true;
             }
             
             // Save the target world
-            if (plugin.getConfigManager().autoSave()) {
+            if (synced && plugin.getConfigManager().autoSave()) {
                 saveWorld(targetWorld);
             }
         }
@@ -585,7 +1195,7 @@ public class DataManager {
         if (globalDir.exists()) {
             File backupGlobalDir = new File(backupDir, "global");
             backupGlobalDir.mkdir();
-            copyFiles(globalDir, backupGlobalDir);
+            copyDirectory(globalDir, backupGlobalDir);
         }
         
         // Backup worlds
@@ -596,6 +1206,12 @@ public class DataManager {
             copyDirectory(worldsDir, backupWorldsDir);
         }
         
+        // Backup the database; pending writes are flushed so the copy is current
+        if (storage instanceof SqlStorage) {
+            flush();
+            ((SqlStorage) storage).backup(new File(backupDir, "data.db"));
+        }
+        
         // Backup tracks
         File tracksFile = new File(plugin.getDataFolder(), "tracks.yml");
         if (tracksFile.exists()) {
@@ -610,34 +1226,6 @@ public class DataManager {
         plugin.getLogger().info("Created backup in " + backupDir.getPath());
     }
     
-    /**
-     * Copies files from one directory to another.
-     * 
-     * @param source the source directory
-     * @param destination the destination directory
-     */
-    private void copyFiles(File source, File destination) {
-        if (!source.isDirectory()) {
-            return;
-        }
-        
-        File[] files = source.listFiles();
-        if (files == null) {
-            return;
-        }
-        
-        for (File file : files) {
-            if (file.isFile()) {
-                try {
-                    FileConfiguration config = YamlConfiguration.loadConfiguration(file);
-                    config.save(new File(destination, file.getName()));
-                } catch (IOException e) {
-                    plugin.getLogger().log(Level.SEVERE, "Could not backup " + file.getPath(), e);
-                }
-            }
-        }
-    }
-    
     /**
      * Copies a directory and its contents.
      * 
@@ -677,27 +1265,26 @@ public class DataManager {
     public void forceReloadGroups() {
         plugin.getLogger().info("Force reloading all groups...");
         
+        // Let background writes finish so the files are not read half-written
+        awaitPendingWrites();
+        
         // For each world, reload its groups
         for (World world : worlds.values()) {
-            // First clear all existing groups
+            // First clear all existing groups; reloaded groups are not journaled as changes
+            world.setMutationLog(null);
             world.clearGroups();
             
-            // Determine the directory to load from
-            File worldDir;
-            if (world.getName().equalsIgnoreCase("global")) {
-                worldDir = new File(plugin.getDataFolder(), "global");
-            } else {
-                worldDir = new File(plugin.getDataFolder(), "worlds/" + world.getName());
-            }
-            
             // Load groups
-            File groupsFile = new File(worldDir, "groups.yml");
-            if (groupsFile.exists()) {
-                plugin.getLogger().info("Reloading groups for world " + world.getName() + " from " + groupsFile.getPath());
-                loadGroups(world, groupsFile);
+            if (storage.hasGroups(world.getName())) {
+                plugin.getLogger().info("Reloading groups for world " + world.getName() + " from " + storage.getName() + " storage");
+                storage.loadGroups(world);
+                
+                // The groups now match the storage, so there is nothing to write back
+                world.takeGroupsDirty();
             } else {
-                plugin.getLogger().warning("Groups file not found for world " + world.getName() + " at " + groupsFile.getPath());
+                plugin.getLogger().warning("No stored groups found for world " + world.getName());
             }
+            world.setMutationLog(changeLog);
         }
         
         plugin.getLogger().info("Finished force reloading all groups");
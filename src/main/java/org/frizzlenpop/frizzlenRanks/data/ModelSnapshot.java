@@ -0,0 +1,637 @@
+package org.frizzlenpop.frizzlenRanks.data;
+
+import org.frizzlenpop.frizzlenRanks.model.Group;
+import org.frizzlenpop.frizzlenRanks.model.Track;
+import org.frizzlenpop.frizzlenRanks.model.User;
+import org.frizzlenpop.frizzlenRanks.model.World;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A binary copy of all groups, users and tracks, written on shutdown so the next start
+ * does not have to parse every YAML file again. The file is read into memory in one go
+ * and closed right away, so it can be replaced while the plugin runs: groups, tracks and
+ * expiries are decoded up front, while users are only indexed and decoded when they are
+ * first needed, like users loaded from their own files.
+ *
+ * <p>Every string is stored once in a table at the start and referred to by its index.
+ * The header holds a magic number, the format version, the time of writing, and the
+ * length and CRC32 of the rest of the file; a snapshot that does not match is not used.
+ * The size and modification time of each YAML file the snapshot was built from are
+ * stored too, so a file is only read from the snapshot while both still match.</p>
+ */
+final class ModelSnapshot {
+    private static final int MAGIC = 0x46525331; // "FRS1"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+
+    // Kept for the user records, which are decoded on demand
+    private final ByteBuffer buffer;
+    private final String[] strings;
+    private final long createdAt;
+    private final Map<String, List<String>> tracks;
+    private final Map<String, FileStamp> files;
+    private final Map<String, WorldIndex> worlds;
+
+    private ModelSnapshot(ByteBuffer buffer, String[] strings, long createdAt, Map<String, List<String>> tracks,
+                          Map<String, FileStamp> files, Map<String, WorldIndex> worlds) {
+        this.buffer = buffer;
+        this.strings = strings;
+        this.createdAt = createdAt;
+        this.tracks = tracks;
+        this.files = files;
+        this.worlds = worlds;
+    }
+
+    /**
+     * Reads and checks a snapshot file.
+     *
+     * @param file the snapshot file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read, or is damaged or of another version
+     */
+    static ModelSnapshot open(File file) throws IOException {
+        // Not mapped: a mapping would keep the file open, and Windows cannot replace an open file
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+        try {
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            long createdAt = buffer.getLong();
+            int length = buffer.getInt();
+            int expected = buffer.getInt();
+            if (length != buffer.remaining()) {
+                throw new IOException("Snapshot is truncated");
+            }
+
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                throw new IOException("Snapshot checksum does not match");
+            }
+
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            Map<String, List<String>> tracks = new LinkedHashMap<>();
+            int trackCount = buffer.getInt();
+            for (int i = 0; i < trackCount; i++) {
+                String trackName = strings[buffer.getInt()];
+                tracks.put(trackName, readList(buffer, strings));
+            }
+
+            int fileCount = buffer.getInt();
+            Map<String, FileStamp> files = new HashMap<>(fileCount * 2);
+            for (int i = 0; i < fileCount; i++) {
+                String path = strings[buffer.getInt()];
+                files.put(path, new FileStamp(buffer.getLong(), buffer.getLong()));
+            }
+
+            Map<String, WorldIndex> worlds = new HashMap<>();
+            int worldCount = buffer.getInt();
+            for (int i = 0; i < worldCount; i++) {
+                WorldIndex index = new WorldIndex(buffer, strings);
+                worlds.put(index.name, index);
+            }
+            return new ModelSnapshot(buffer, strings, createdAt, tracks, files, worlds);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Snapshot is damaged", e);
+        }
+    }
+
+    /**
+     * Gets the time the snapshot was written.
+     *
+     * @return the timestamp in milliseconds
+     */
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Checks if a file is still the one the snapshot was built from.
+     *
+     * @param path the path of the file relative to the data folder, separated by "/"
+     * @param size the current size of the file
+     * @param modified the current modification time of the file
+     * @return true if the snapshot recorded the file with the same size and modification time
+     */
+    boolean isCurrent(String path, long size, long modified) {
+        FileStamp stamp = files.get(path);
+        return stamp != null && stamp.size == size && stamp.modified == modified;
+    }
+
+    /**
+     * Gets the tracks.
+     *
+     * @return the groups of each track, by track name
+     */
+    Map<String, List<String>> getTracks() {
+        return tracks;
+    }
+
+    /**
+     * Checks if the snapshot holds the groups of a world.
+     *
+     * @param worldName the lower-cased world name
+     * @return true if the world is in the snapshot
+     */
+    boolean hasWorld(String worldName) {
+        return worlds.containsKey(worldName);
+    }
+
+    /**
+     * Copies the groups of a world into it.
+     *
+     * @param world the world to load into
+     */
+    void loadGroups(World world) {
+        WorldIndex index = worlds.get(world.getName());
+        if (index == null) {
+            return;
+        }
+
+        ByteBuffer in = buffer.duplicate();
+        in.position(index.groupsPosition);
+        int groupCount = in.getInt();
+        for (int i = 0; i < groupCount; i++) {
+            Group group = world.getGroup(strings[in.getInt()]);
+            group.setPriority(in.getInt());
+            for (String permission : readList(in, strings)) {
+                group.addPermission(permission);
+            }
+            // Written from groups that already refused circular inheritance
+            for (String parent : readList(in, strings)) {
+                group.addInheritance(parent);
+            }
+            int metaCount = in.getInt();
+            for (int j = 0; j < metaCount; j++) {
+                group.setMeta(strings[in.getInt()], strings[in.getInt()]);
+            }
+        }
+    }
+
+    /**
+     * Gets the stored expiries of a world's users.
+     *
+     * @param worldName the lower-cased world name
+     * @return the earliest expiry of each user with temporary entries
+     */
+    Map<String, Long> getExpiries(String worldName) {
+        WorldIndex index = worlds.get(worldName);
+        return index != null ? index.expiries : Collections.emptyMap();
+    }
+
+    /**
+     * Copies a user into the given user object, skipping temporary entries that expired.
+     *
+     * @param worldName the lower-cased world name
+     * @param user the user to load into
+     * @return false if the user is not in the snapshot
+     */
+    boolean loadUser(String worldName, User user) {
+        WorldIndex index = worlds.get(worldName);
+        Integer position = index != null ? index.users.get(user.getName().toLowerCase()) : null;
+        if (position == null) {
+            return false;
+        }
+
+        ByteBuffer in = buffer.duplicate();
+        in.position(position);
+        long now = System.currentTimeMillis();
+        for (String permission : readList(in, strings)) {
+            user.addPermission(permission);
+        }
+        for (String group : readList(in, strings)) {
+            user.addGroup(group);
+        }
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            String permission = strings[in.getInt()];
+            long expiry = in.getLong();
+            if (expiry > now) {
+                user.addTemporaryPermission(permission, expiry);
+            }
+        }
+        count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            String group = strings[in.getInt()];
+            long expiry = in.getLong();
+            if (expiry > now) {
+                user.addTemporaryGroup(group, expiry);
+            }
+        }
+        count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            user.setMeta(strings[in.getInt()], strings[in.getInt()]);
+        }
+        return true;
+    }
+
+    /**
+     * Copies a user's record into a snapshot being written, without decoding it into a user.
+     * Expired temporary entries are copied too; they are skipped when the user is loaded.
+     *
+     * @param worldName the lower-cased world name
+     * @param userName the lower-cased user name
+     * @param writer the snapshot being written, with the user's world begun
+     * @return false if the user is not in the snapshot
+     * @throws IOException never, as the data is written to memory
+     */
+    boolean copyUser(String worldName, String userName, Writer writer) throws IOException {
+        WorldIndex index = worlds.get(worldName);
+        Integer position = index != null ? index.users.get(userName) : null;
+        if (position == null) {
+            return false;
+        }
+
+        ByteBuffer in = buffer.duplicate();
+        in.position(position);
+        List<String> permissions = readList(in, strings);
+        List<String> groups = readList(in, strings);
+        Map<String, Long> temporaryPermissions = readTemporary(in, strings);
+        Map<String, Long> temporaryGroups = readTemporary(in, strings);
+        int count = in.getInt();
+        Map<String, String> meta = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            meta.put(strings[in.getInt()], strings[in.getInt()]);
+        }
+        writer.addUser(userName, permissions, groups, temporaryPermissions, temporaryGroups, meta);
+        return true;
+    }
+
+    /**
+     * Reads temporary entries with their expiration timestamps.
+     *
+     * @param in the buffer to read from
+     * @param strings the string table
+     * @return the entries
+     */
+    private static Map<String, Long> readTemporary(ByteBuffer in, String[] strings) {
+        int count = in.getInt();
+        Map<String, Long> entries = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            entries.put(strings[in.getInt()], in.getLong());
+        }
+        return entries;
+    }
+
+    /**
+     * Reads a list of string table indexes.
+     *
+     * @param in the buffer to read from
+     * @param strings the string table
+     * @return the strings
+     */
+    private static List<String> readList(ByteBuffer in, String[] strings) {
+        int count = in.getInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(strings[in.getInt()]);
+        }
+        return values;
+    }
+
+    /**
+     * The size and modification time a file had when the snapshot was built from it.
+     */
+    private static final class FileStamp {
+        private final long size;
+        private final long modified;
+
+        private FileStamp(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Where the data of one world is found in the file.
+     */
+    private static final class WorldIndex {
+        private final String name;
+        private final int groupsPosition;
+        private final Map<String, Integer> users;
+        private final Map<String, Long> expiries;
+
+        /**
+         * Reads the index of a world and skips over its records.
+         *
+         * @param in the buffer, positioned at the world
+         * @param strings the string table
+         */
+        private WorldIndex(ByteBuffer in, String[] strings) {
+            this.name = strings[in.getInt()];
+
+            // Groups are decoded when the world is loaded, so only their extent is read here
+            int groupsLength = in.getInt();
+            this.groupsPosition = in.position();
+            in.position(groupsPosition + groupsLength);
+
+            int userCount = in.getInt();
+            this.users = new HashMap<>(userCount * 2);
+            for (int i = 0; i < userCount; i++) {
+                String userName = strings[in.getInt()];
+                int recordLength = in.getInt();
+                users.put(userName, in.position());
+                in.position(in.position() + recordLength);
+            }
+
+            int expiryCount = in.getInt();
+            Map<String, Long> index = new HashMap<>(expiryCount * 2);
+            for (int i = 0; i < expiryCount; i++) {
+                index.put(strings[in.getInt()], in.getLong());
+            }
+            this.expiries = Collections.unmodifiableMap(index);
+        }
+    }
+
+    /**
+     * Builds a snapshot in memory and writes it to disk.
+     * The file is written next to the target and moved over it once complete.
+     */
+    static final class Writer {
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<String> stringTable = new ArrayList<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(body);
+        private final List<String> trackNames = new ArrayList<>();
+        private final List<List<String>> trackGroups = new ArrayList<>();
+        private final Map<String, FileStamp> fileStamps = new LinkedHashMap<>();
+        private int worldCount;
+
+        // The world being written, collected separately so its sections can be prefixed with their length
+        private ByteArrayOutputStream groups;
+        private ByteArrayOutputStream users;
+        private int groupCount;
+        private int userCount;
+
+        /**
+         * Adds the tracks.
+         *
+         * @param tracks the tracks to store
+         */
+        void addTracks(Collection<Track> tracks) {
+            for (Track track : tracks) {
+                trackNames.add(track.getName());
+                trackGroups.add(track.getGroups());
+            }
+        }
+
+        /**
+         * Records the size and modification time of a file the snapshot is built from.
+         *
+         * @param path the path of the file relative to the data folder, separated by "/"
+         * @param size the size of the file
+         * @param modified the modification time of the file
+         */
+        void addFile(String path, long size, long modified) {
+            fileStamps.put(path, new FileStamp(size, modified));
+        }
+
+        /**
+         * Starts a new world. Its groups and users follow, and {@link #endWorld(String, Map)} closes it.
+         */
+        void beginWorld() {
+            groups = new ByteArrayOutputStream();
+            users = new ByteArrayOutputStream();
+            groupCount = 0;
+            userCount = 0;
+        }
+
+        /**
+         * Adds a group of the current world.
+         *
+         * @param group the group to store
+         * @throws IOException never, as the data is written to memory
+         */
+        void addGroup(Group group) throws IOException {
+            DataOutputStream groupOut = new DataOutputStream(groups);
+            groupOut.writeInt(id(group.getName()));
+            groupOut.writeInt(group.getPriority());
+            writeList(groupOut, group.getPermissions());
+            writeList(groupOut, group.getInheritance());
+            writeMeta(groupOut, group.getMeta());
+            groupCount++;
+        }
+
+        /**
+         * Adds a user of the current world, including its temporary entries.
+         *
+         * @param user the user to store
+         * @throws IOException never, as the data is written to memory
+         */
+        void addUser(User user) throws IOException {
+            addUser(user.getName().toLowerCase(), user.getPermanentPermissions(), user.getPermanentGroups(),
+                    user.getTemporaryPermissions(), user.getTemporaryGroups(), user.getMeta());
+        }
+
+        /**
+         * Adds a user of the current world from its parts.
+         *
+         * @param userName the lower-cased user name
+         * @param permissions the permanent permissions
+         * @param groups the permanent groups
+         * @param temporaryPermissions the temporary permissions with their expiries
+         * @param temporaryGroups the temporary groups with their expiries
+         * @param meta the metadata
+         * @throws IOException never, as the data is written to memory
+         */
+        void addUser(String userName, Collection<String> permissions, Collection<String> groups,
+                     Map<String, Long> temporaryPermissions, Map<String, Long> temporaryGroups,
+                     Map<String, String> meta) throws IOException {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+            DataOutputStream recordOut = new DataOutputStream(record);
+            writeList(recordOut, permissions);
+            writeList(recordOut, groups);
+            writeTemporary(recordOut, temporaryPermissions);
+            writeTemporary(recordOut, temporaryGroups);
+            writeMeta(recordOut, meta);
+
+            DataOutputStream userOut = new DataOutputStream(users);
+            userOut.writeInt(id(userName));
+            userOut.writeInt(record.size());
+            record.writeTo(userOut);
+            userCount++;
+        }
+
+        /**
+         * Finishes the current world.
+         *
+         * @param worldName the lower-cased world name
+         * @param expiries the earliest expiry of each user with temporary entries
+         * @throws IOException never, as the data is written to memory
+         */
+        void endWorld(String worldName, Map<String, Long> expiries) throws IOException {
+            out.writeInt(id(worldName));
+
+            out.writeInt(groups.size() + 4);
+            out.writeInt(groupCount);
+            groups.writeTo(out);
+
+            out.writeInt(userCount);
+            users.writeTo(out);
+
+            out.writeInt(expiries.size());
+            for (Map.Entry<String, Long> entry : expiries.entrySet()) {
+                out.writeInt(id(entry.getKey()));
+                out.writeLong(entry.getValue());
+            }
+            worldCount++;
+        }
+
+        /**
+         * Writes the snapshot to a file, replacing the previous one only once it is complete.
+         *
+         * @param file the snapshot file
+         * @throws IOException if the file cannot be written
+         */
+        void write(File file) throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            DataOutputStream headOut = new DataOutputStream(head);
+            List<Integer> trackIds = new ArrayList<>();
+            List<List<Integer>> trackGroupIds = new ArrayList<>();
+            for (int i = 0; i < trackNames.size(); i++) {
+                trackIds.add(id(trackNames.get(i)));
+                List<Integer> groupIds = new ArrayList<>();
+                for (String group : trackGroups.get(i)) {
+                    groupIds.add(id(group));
+                }
+                trackGroupIds.add(groupIds);
+            }
+            List<Integer> fileIds = new ArrayList<>();
+            for (String path : fileStamps.keySet()) {
+                fileIds.add(id(path));
+            }
+
+            // The string table is complete only now, so it is written last but stored first
+            headOut.writeInt(stringTable.size());
+            for (String value : stringTable) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                headOut.writeInt(bytes.length);
+                headOut.write(bytes);
+            }
+            headOut.writeInt(trackIds.size());
+            for (int i = 0; i < trackIds.size(); i++) {
+                headOut.writeInt(trackIds.get(i));
+                headOut.writeInt(trackGroupIds.get(i).size());
+                for (int groupId : trackGroupIds.get(i)) {
+                    headOut.writeInt(groupId);
+                }
+            }
+            headOut.writeInt(fileIds.size());
+            int fileIndex = 0;
+            for (FileStamp stamp : fileStamps.values()) {
+                headOut.writeInt(fileIds.get(fileIndex++));
+                headOut.writeLong(stamp.size);
+                headOut.writeLong(stamp.modified);
+            }
+            headOut.writeInt(worldCount);
+
+            CRC32 checksum = new CRC32();
+            checksum.update(head.toByteArray());
+            checksum.update(body.toByteArray());
+
+            File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+            try (FileOutputStream stream = new FileOutputStream(temp)) {
+                DataOutputStream fileOut = new DataOutputStream(stream);
+                fileOut.writeInt(MAGIC);
+                fileOut.writeInt(VERSION);
+                fileOut.writeLong(System.currentTimeMillis());
+                fileOut.writeInt(head.size() + body.size());
+                fileOut.writeInt((int) checksum.getValue());
+                head.writeTo(fileOut);
+                body.writeTo(fileOut);
+                fileOut.flush();
+                stream.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Gets the table index of a string, adding it if it is new.
+         *
+         * @param value the string
+         * @return its index
+         */
+        private int id(String value) {
+            Integer id = stringIds.get(value);
+            if (id == null) {
+                id = stringTable.size();
+                stringIds.put(value, id);
+                stringTable.add(value);
+            }
+            return id;
+        }
+
+        /**
+         * Writes a list of strings as table indexes.
+         *
+         * @param listOut the stream to write to
+         * @param values the strings
+         * @throws IOException never, as the data is written to memory
+         */
+        private void writeList(DataOutputStream listOut, Collection<String> values) throws IOException {
+            listOut.writeInt(values.size());
+            for (String value : values) {
+                listOut.writeInt(id(value));
+            }
+        }
+
+        /**
+         * Writes temporary entries with their expiration timestamps.
+         *
+         * @param temporaryOut the stream to write to
+         * @param entries the entries
+         * @throws IOException never, as the data is written to memory
+         */
+        private void writeTemporary(DataOutputStream temporaryOut, Map<String, Long> entries) throws IOException {
+            temporaryOut.writeInt(entries.size());
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                temporaryOut.writeInt(id(entry.getKey()));
+                temporaryOut.writeLong(entry.getValue());
+            }
+        }
+
+        /**
+         * Writes metadata keys and values.
+         *
+         * @param metaOut the stream to write to
+         * @param meta the metadata
+         * @throws IOException never, as the data is written to memory
+         */
+        private void writeMeta(DataOutputStream metaOut, Map<String, String> meta) throws IOException {
+            metaOut.writeInt(meta.size());
+            for (Map.Entry<String, String> entry : meta.entrySet()) {
+                metaOut.writeInt(id(entry.getKey()));
+                metaOut.writeInt(id(entry.getValue()));
+            }
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package org.frizzlenpop.frizzlenRanks.data;
+
+import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
+import org.frizzlenpop.frizzlenRanks.model.MutationLog;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of changes made since the last save.
+ * Changes are encoded into small binary records and appended to the current segment
+ * file by a background thread, which writes and syncs everything recorded since its
+ * last run in one go. Each save starts a new segment and deletes the older ones once
+ * the saved data is on disk, so after a crash only the changes made since the last
+ * save are replayed. If a save fails, no segment is deleted until the next start.
+ *
+ * <p>A record is stored as its length, the payload and a CRC32 of the payload.
+ * Types are stored by ordinal, so new types must only be added at the end.</p>
+ */
+public class MutationJournal implements MutationLog {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    // Once a segment grows past this size a save is requested, so the journal stays short
+    private static final long COMPACT_SIZE = 4L * 1024 * 1024;
+
+    private final FrizzlenRanks plugin;
+    private final File directory;
+    private final Runnable compactionRequest;
+    private final ScheduledExecutorService syncExecutor;
+
+    // Records waiting for the next sync, and the size of the current segment including them
+    private final ByteArrayOutputStream pending;
+    private long segmentSize;
+    private boolean compactionRequested;
+
+    // The segment new records belong to, and the records of closed segments not yet written to them
+    private long segment;
+    private final Deque<byte[]> closedRecords;
+
+    // Set once a save failed, so the segments holding its changes are kept
+    private volatile boolean retaining;
+
+    // Guards the segment file; held while writing so records land in the order they were made
+    private final Object ioLock = new Object();
+    private FileChannel channel;
+    private long channelSegment;
+
+    // The first segment written by this journal; older ones are left over from a previous run
+    private long firstSegment;
+
+    /**
+     * Creates a new journal.
+     *
+     * @param plugin the plugin instance
+     * @param directory the directory holding the segment files
+     * @param compactionRequest called when the journal has grown large enough to be saved away
+     */
+    public MutationJournal(FrizzlenRanks plugin, File directory, Runnable compactionRequest) {
+        this.plugin = plugin;
+        this.directory = directory;
+        this.compactionRequest = compactionRequest;
+        this.pending = new ByteArrayOutputStream();
+        this.closedRecords = new ArrayDeque<>();
+        this.syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FrizzlenRanks-Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens a new segment after the existing ones and starts syncing.
+     * Existing segments are left for {@link #replay(MutationLog)}.
+     *
+     * @param syncInterval how often recorded changes are written and synced, in milliseconds
+     * @return true if the journal is ready
+     */
+    public boolean open(long syncInterval) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            plugin.getLogger().severe("Could not create journal directory " + directory.getPath());
+            return false;
+        }
+
+        List<Long> segments = getSegments();
+        segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        firstSegment = segment;
+        channelSegment = segment;
+        try {
+            channel = openSegment(segment);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not open journal in " + directory.getPath(), e);
+            return false;
+        }
+
+        syncExecutor.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public void record(String worldName, Type type, String owner, String key, String value, long number) {
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type.ordinal());
+            out.writeUTF(worldName);
+            out.writeUTF(owner);
+            writeOptional(out, key);
+            writeOptional(out, value);
+            out.writeLong(number);
+            payload = bytes.toByteArray();
+        } catch (IOException e) {
+            // Strings longer than 64KB cannot be encoded; the change is still saved normally
+            plugin.getLogger().log(Level.WARNING, "Could not journal " + type + " for " + owner, e);
+            return;
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+
+        boolean requestCompaction = false;
+        synchronized (this) {
+            writeInt(payload.length);
+            pending.write(payload, 0, payload.length);
+            writeInt((int) checksum.getValue());
+
+            segmentSize += payload.length + 8;
+            if (segmentSize > COMPACT_SIZE && !compactionRequested) {
+                compactionRequested = true;
+                requestCompaction = true;
+            }
+        }
+
+        if (requestCompaction) {
+            compactionRequest.run();
+        }
+    }
+
+    /**
+     * Appends a big-endian int to the pending records.
+     *
+     * @param value the value to append
+     */
+    private void writeInt(int value) {
+        pending.write(value >>> 24);
+        pending.write(value >>> 16);
+        pending.write(value >>> 8);
+        pending.write(value);
+    }
+
+    /**
+     * Writes a string that may be null.
+     *
+     * @param out the stream to write to
+     * @param value the string, or null
+     * @throws IOException if the string is too long
+     */
+    private void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string written by {@link #writeOptional(DataOutputStream, String)}.
+     *
+     * @param in the stream to read from
+     * @return the string, or null
+     * @throws IOException if the record is malformed
+     */
+    private String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Appends all pending records to the current segment with a single write and syncs it.
+     * Does nothing while a closed segment is still waiting for {@link #switchSegment()}.
+     */
+    public void sync() {
+        synchronized (ioLock) {
+            byte[] data;
+            synchronized (this) {
+                if (channel == null || pending.size() == 0 || channelSegment != segment) {
+                    return;
+                }
+                data = pending.toByteArray();
+                pending.reset();
+            }
+
+            try {
+                write(data);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not write journal segment " + channelSegment, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one. Called right before a save
+     * captures the data, so everything in the closed segment is part of that save.
+     * Only the pending records are handed over here; the file work is left to
+     * {@link #switchSegment()}, so this never waits on the disk.
+     *
+     * @return the number of the closed segment, or -1 if it was empty
+     */
+    public synchronized long rotate() {
+        if (segmentSize == 0) {
+            return -1;
+        }
+
+        closedRecords.add(pending.toByteArray());
+        pending.reset();
+        segmentSize = 0;
+        compactionRequested = false;
+        return segment++;
+    }
+
+    /**
+     * Writes the remaining records of the oldest closed segment, syncs and closes it, and
+     * opens the next one. Called once for each {@link #rotate()}, in the same order,
+     * before the save that follows writes anything.
+     */
+    public void switchSegment() {
+        synchronized (ioLock) {
+            byte[] data;
+            synchronized (this) {
+                data = closedRecords.poll();
+            }
+            if (data == null) {
+                return;
+            }
+
+            long closed = channelSegment;
+            try {
+                write(data);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not write journal segment " + closed, e);
+            }
+
+            closeChannel();
+            channelSegment = closed + 1;
+            try {
+                channel = openSegment(channelSegment);
+            } catch (IOException e) {
+                // Retried when the next records are written to it
+                plugin.getLogger().log(Level.SEVERE, "Could not start journal segment " + channelSegment, e);
+            }
+        }
+    }
+
+    /**
+     * Keeps every segment from now on, after a save failed. The segments are replayed
+     * and deleted on the next start.
+     */
+    public void retainSegments() {
+        retaining = true;
+    }
+
+    /**
+     * Checks if the segments are kept because a save failed.
+     *
+     * @return true if no segment is deleted any more
+     */
+    public boolean isRetaining() {
+        return retaining;
+    }
+
+    /**
+     * Deletes a closed segment and all segments before it, once their changes are saved.
+     * Does nothing once a save has failed.
+     *
+     * @param lastSegment the number of the last segment to delete
+     */
+    public void deleteThrough(long lastSegment) {
+        if (retaining) {
+            return;
+        }
+        long currentSegment;
+        synchronized (ioLock) {
+            currentSegment = channelSegment;
+        }
+        for (long number : getSegments()) {
+            if (number > lastSegment || number >= currentSegment) {
+                break;
+            }
+
+            File file = getSegmentFile(number);
+            if (!file.delete()) {
+                plugin.getLogger().warning("Could not delete journal segment " + file.getPath());
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments left over from a previous run, once their changes are saved.
+     */
+    public void deleteReplayed() {
+        deleteThrough(firstSegment - 1);
+    }
+
+    /**
+     * Replays the records of all segments left over from a previous run, oldest first.
+     * A record that was only partly written when the server stopped ends its segment.
+     *
+     * @param target receives each recorded change
+     * @return the number of changes replayed
+     */
+    public int replay(MutationLog target) {
+        Type[] types = Type.values();
+        int replayed = 0;
+
+        for (long number : getSegments()) {
+            if (number >= firstSegment) {
+                break;
+            }
+
+            File file = getSegmentFile(number);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        plugin.getLogger().warning("Ignoring damaged end of journal segment " + file.getName());
+                        break;
+                    }
+
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    int expected = in.readInt();
+                    CRC32 checksum = new CRC32();
+                    checksum.update(payload);
+                    if ((int) checksum.getValue() != expected) {
+                        plugin.getLogger().warning("Ignoring damaged end of journal segment " + file.getName());
+                        break;
+                    }
+
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                    int ordinal = record.readUnsignedByte();
+                    if (ordinal >= types.length) {
+                        continue;
+                    }
+                    target.record(record.readUTF(), types[ordinal], record.readUTF(),
+                            readOptional(record), readOptional(record), record.readLong());
+                    replayed++;
+                }
+            } catch (EOFException e) {
+                plugin.getLogger().warning("Ignoring partly written record at the end of journal segment " + file.getName());
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not read journal segment " + file.getPath(), e);
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Stops syncing, writes the remaining records and closes the current segment.
+     */
+    public void close() {
+        syncExecutor.shutdown();
+        try {
+            syncExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (ioLock) {
+            // Segments closed by a save that never ran still get their records
+            while (hasClosedRecords()) {
+                switchSegment();
+            }
+            sync();
+            closeChannel();
+        }
+    }
+
+    /**
+     * Closes the open segment file, if any. Called while holding the I/O lock.
+     */
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not close journal segment " + channelSegment, e);
+        }
+        channel = null;
+    }
+
+    /**
+     * Checks if a closed segment is still waiting for its remaining records.
+     *
+     * @return true if {@link #switchSegment()} has work left
+     */
+    private synchronized boolean hasClosedRecords() {
+        return !closedRecords.isEmpty();
+    }
+
+    /**
+     * Appends data to the open segment and syncs it.
+     *
+     * @param data the records to append
+     * @throws IOException if the segment cannot be written
+     */
+    private void write(byte[] data) throws IOException {
+        if (channel == null) {
+            channel = openSegment(channelSegment);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Deletes all segment files and the journal directory. Only used after the journal was closed.
+     */
+    public void deleteAll() {
+        for (long number : getSegments()) {
+            File file = getSegmentFile(number);
+            if (!file.delete()) {
+                plugin.getLogger().warning("Could not delete journal segment " + file.getPath());
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Opens a segment file for appending.
+     *
+     * @param number the segment number
+     * @return the channel
+     * @throws IOException if the file cannot be opened
+     */
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(getSegmentFile(number).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Gets the file of a segment.
+     *
+     * @param number the segment number
+     * @return the segment file
+     */
+    private File getSegmentFile(long number) {
+        return new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Gets the numbers of all segment files on disk.
+     *
+     * @return the segment numbers in ascending order
+     */
+    private List<Long> getSegments() {
+        List<Long> segments = new ArrayList<>();
+        String[] fileNames = directory.list();
+        if (fileNames == null) {
+            return segments;
+        }
+
+        for (String fileName : fileNames) {
+            if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                segments.add(Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException ignored) {
+                // Not a segment written by this journal
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+}
@@ -0,0 +1,16 @@
+package org.frizzlenpop.frizzlenRanks.data;
+
+/**
+ * A write prepared by a storage backend. The data is copied when the task is created,
+ * so it can run on a background thread.
+ */
+@FunctionalInterface
+public interface SaveTask {
+
+    /**
+     * Writes the copied data. Failures are logged by the task itself.
+     *
+     * @return false if the data could not be written
+     */
+    boolean run();
+}
@@ -0,0 +1,597 @@
+package org.frizzlenpop.frizzlenRanks.data;
+
+import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
+import org.frizzlenpop.frizzlenRanks.model.Group;
+import org.frizzlenpop.frizzlenRanks.model.User;
+import org.frizzlenpop.frizzlenRanks.model.World;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * Stores data in a single local SQLite database file, using the driver that ships with the server.
+ * Every table is keyed by world and owner, so loading or saving one user only touches that user's rows.
+ * Saves compare the stored rows with the data and only insert, update or delete the rows that differ.
+ */
+public class SqlStorage implements StorageBackend {
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS users (world TEXT NOT NULL, name TEXT NOT NULL, PRIMARY KEY (world, name))",
+        "CREATE TABLE IF NOT EXISTS user_groups (world TEXT NOT NULL, user TEXT NOT NULL, grp TEXT NOT NULL, "
+                + "expires INTEGER, PRIMARY KEY (world, user, grp))",
+        "CREATE INDEX IF NOT EXISTS user_groups_by_group ON user_groups (world, grp)",
+        "CREATE INDEX IF NOT EXISTS user_groups_by_expiry ON user_groups (world, expires)",
+        "CREATE TABLE IF NOT EXISTS user_permissions (world TEXT NOT NULL, user TEXT NOT NULL, permission TEXT NOT NULL, "
+                + "expires INTEGER, PRIMARY KEY (world, user, permission))",
+        "CREATE INDEX IF NOT EXISTS user_permissions_by_expiry ON user_permissions (world, expires)",
+        "CREATE TABLE IF NOT EXISTS user_meta (world TEXT NOT NULL, user TEXT NOT NULL, meta_key TEXT NOT NULL, "
+                + "meta_value TEXT, PRIMARY KEY (world, user, meta_key))",
+        "CREATE TABLE IF NOT EXISTS permission_groups (world TEXT NOT NULL, name TEXT NOT NULL, priority INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (world, name))",
+        "CREATE TABLE IF NOT EXISTS group_permissions (world TEXT NOT NULL, grp TEXT NOT NULL, permission TEXT NOT NULL, "
+                + "PRIMARY KEY (world, grp, permission))",
+        "CREATE TABLE IF NOT EXISTS group_inheritance (world TEXT NOT NULL, grp TEXT NOT NULL, parent TEXT NOT NULL, "
+                + "PRIMARY KEY (world, grp, parent))",
+        "CREATE TABLE IF NOT EXISTS group_meta (world TEXT NOT NULL, grp TEXT NOT NULL, meta_key TEXT NOT NULL, "
+                + "meta_value TEXT, PRIMARY KEY (world, grp, meta_key))"
+    };
+
+    private static final String[] USER_TABLES = {"user_groups", "user_permissions", "user_meta"};
+
+    private static final Table USER_PERMISSIONS = new Table("user_permissions", "user", new String[] {"permission"}, "expires");
+    private static final Table USER_GROUPS = new Table("user_groups", "user", new String[] {"grp"}, "expires");
+    private static final Table USER_META = new Table("user_meta", "user", new String[] {"meta_key"}, "meta_value");
+    private static final Table GROUPS = new Table("permission_groups", null, new String[] {"name"}, "priority");
+    private static final Table GROUP_PERMISSIONS = new Table("group_permissions", null, new String[] {"grp", "permission"}, null);
+    private static final Table GROUP_INHERITANCE = new Table("group_inheritance", null, new String[] {"grp", "parent"}, null);
+    private static final Table GROUP_META = new Table("group_meta", null, new String[] {"grp", "meta_key"}, "meta_value");
+
+    private final FrizzlenRanks plugin;
+    private final File file;
+    private Connection connection;
+
+    /**
+     * Creates a new SqlStorage.
+     *
+     * @param plugin the plugin instance
+     * @param file the database file
+     */
+    public SqlStorage(FrizzlenRanks plugin, File file) {
+        this.plugin = plugin;
+        this.file = file;
+    }
+
+    @Override
+    public String getName() {
+        return "sqlite";
+    }
+
+    @Override
+    public synchronized boolean open() {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                for (String sql : SCHEMA) {
+                    statement.execute(sql);
+                }
+            }
+            return true;
+        } catch (ClassNotFoundException | SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not open database " + file.getPath(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not close database " + file.getPath(), e);
+        }
+        connection = null;
+    }
+
+    /**
+     * Writes a consistent copy of the database to another file.
+     *
+     * @param target the file to write the copy to; must not exist yet
+     */
+    public synchronized void backup(File target) {
+        try (PreparedStatement statement = connection.prepareStatement("VACUUM INTO ?")) {
+            statement.setString(1, target.getAbsolutePath());
+            statement.execute();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not backup database to " + target.getPath(), e);
+        }
+    }
+
+    @Override
+    public synchronized Collection<String> getWorldNames() {
+        Set<String> worldNames = new LinkedHashSet<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT DISTINCT world FROM permission_groups UNION SELECT DISTINCT world FROM users")) {
+            while (result.next()) {
+                worldNames.add(result.getString(1));
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not list worlds", e);
+        }
+        return worldNames;
+    }
+
+    @Override
+    public synchronized boolean hasGroups(String worldName) {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM permission_groups WHERE world = ? LIMIT 1")) {
+            statement.setString(1, worldName);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next();
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not check groups of world " + worldName, e);
+            // Report the groups as present so the defaults don't overwrite them
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized void loadGroups(World world) {
+        String worldName = world.getName();
+        try {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT name, priority FROM permission_groups WHERE world = ?")) {
+                statement.setString(1, worldName);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        world.getGroup(result.getString(1)).setPriority(result.getInt(2));
+                    }
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("SELECT grp, permission FROM group_permissions WHERE world = ?")) {
+                statement.setString(1, worldName);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        world.getGroup(result.getString(1)).addPermission(result.getString(2));
+                    }
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("SELECT grp, parent FROM group_inheritance WHERE world = ?")) {
+                statement.setString(1, worldName);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        String groupName = result.getString(1);
+                        String parent = result.getString(2);
+                        if (!world.getGroup(groupName).addInheritance(parent)) {
+                            plugin.getLogger().warning("Ignoring circular inheritance of group " + groupName + " from " + parent);
+                        }
+                    }
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("SELECT grp, meta_key, meta_value FROM group_meta WHERE world = ?")) {
+                statement.setString(1, worldName);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        world.getGroup(result.getString(1)).setMeta(result.getString(2), result.getString(3));
+                    }
+                }
+            }
+
+            plugin.getLogger().info("Loaded " + world.getGroups().size() + " groups for world " + worldName + " from the database");
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load groups of world " + worldName, e);
+        }
+    }
+
+    @Override
+    public SaveTask saveGroups(World world) {
+        String worldName = world.getName();
+        Map<List<String>, Object> groups = new HashMap<>();
+        Map<List<String>, Object> permissions = new HashMap<>();
+        Map<List<String>, Object> inheritance = new HashMap<>();
+        Map<List<String>, Object> meta = new HashMap<>();
+        for (Group group : world.getGroups()) {
+            String groupName = group.getName();
+            groups.put(Collections.singletonList(groupName), group.getPriority());
+            for (String permission : group.getPermissions()) {
+                permissions.put(Arrays.asList(groupName, permission), null);
+            }
+            for (String parent : group.getInheritance()) {
+                inheritance.put(Arrays.asList(groupName, parent), null);
+            }
+            for (Map.Entry<String, String> entry : group.getMeta().entrySet()) {
+                meta.put(Arrays.asList(groupName, entry.getKey()), entry.getValue());
+            }
+        }
+
+        return () -> {
+            synchronized (this) {
+                try {
+                    connection.setAutoCommit(false);
+                    syncRows(GROUPS, worldName, null, groups);
+                    syncRows(GROUP_PERMISSIONS, worldName, null, permissions);
+                    syncRows(GROUP_INHERITANCE, worldName, null, inheritance);
+                    syncRows(GROUP_META, worldName, null, meta);
+                    connection.commit();
+                    return true;
+                } catch (SQLException e) {
+                    rollback();
+                    plugin.getLogger().log(Level.SEVERE, "Could not save groups of world " + worldName, e);
+                    return false;
+                } finally {
+                    resetAutoCommit();
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized Collection<String> getUserNames(String worldName) {
+        List<String> userNames = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT name FROM users WHERE world = ?")) {
+            statement.setString(1, worldName);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    userNames.add(result.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not list users of world " + worldName, e);
+        }
+        return userNames;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getExpiries(String worldName) {
+        Map<String, Long> expiries = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT user, MIN(expires) FROM (SELECT user, expires FROM user_permissions WHERE world = ? AND expires IS NOT NULL "
+                        + "UNION ALL SELECT user, expires FROM user_groups WHERE world = ? AND expires IS NOT NULL) GROUP BY user")) {
+            statement.setString(1, worldName);
+            statement.setString(2, worldName);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    expiries.put(result.getString(1), result.getLong(2));
+                }
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not read expiries of world " + worldName, e);
+        }
+        return expiries;
+    }
+
+    @Override
+    public synchronized boolean loadUser(String worldName, User user) {
+        String userName = user.getName();
+        long now = System.currentTimeMillis();
+        try {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM users WHERE world = ? AND name = ?")) {
+                statement.setString(1, worldName);
+                statement.setString(2, userName);
+                try (ResultSet result = statement.executeQuery()) {
+                    if (!result.next()) {
+                        return false;
+                    }
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT permission, expires FROM user_permissions WHERE world = ? AND user = ? AND (expires IS NULL OR expires > ?)")) {
+                statement.setString(1, worldName);
+                statement.setString(2, userName);
+                statement.setLong(3, now);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        long expires = result.getLong(2);
+                        if (result.wasNull()) {
+                            user.addPermission(result.getString(1));
+                        } else {
+                            user.addTemporaryPermission(result.getString(1), expires);
+                        }
+                    }
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT grp, expires FROM user_groups WHERE world = ? AND user = ? AND (expires IS NULL OR expires > ?)")) {
+                statement.setString(1, worldName);
+                statement.setString(2, userName);
+                statement.setLong(3, now);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        long expires = result.getLong(2);
+                        if (result.wasNull()) {
+                            user.addGroup(result.getString(1));
+                        } else {
+                            user.addTemporaryGroup(result.getString(1), expires);
+                        }
+                    }
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT meta_key, meta_value FROM user_meta WHERE world = ? AND user = ?")) {
+                statement.setString(1, worldName);
+                statement.setString(2, userName);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        user.setMeta(result.getString(1), result.getString(2));
+                    }
+                }
+            }
+            return true;
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load user " + userName + " of world " + worldName, e);
+            return false;
+        }
+    }
+
+    @Override
+    public SaveTask saveUser(String worldName, User user) {
+        String userName = user.getName();
+        // A temporary entry replaces a permanent one of the same name, as it did in the table
+        Map<List<String>, Object> permissions = new HashMap<>();
+        for (String permission : user.getPermanentPermissions()) {
+            permissions.put(Collections.singletonList(permission), null);
+        }
+        for (Map.Entry<String, Long> entry : user.getTemporaryPermissions().entrySet()) {
+            permissions.put(Collections.singletonList(entry.getKey()), entry.getValue());
+        }
+        Map<List<String>, Object> groups = new HashMap<>();
+        for (String group : user.getPermanentGroups()) {
+            groups.put(Collections.singletonList(group), null);
+        }
+        for (Map.Entry<String, Long> entry : user.getTemporaryGroups().entrySet()) {
+            groups.put(Collections.singletonList(entry.getKey()), entry.getValue());
+        }
+        Map<List<String>, Object> meta = new HashMap<>();
+        for (Map.Entry<String, String> entry : user.getMeta().entrySet()) {
+            meta.put(Collections.singletonList(entry.getKey()), entry.getValue());
+        }
+
+        return () -> {
+            synchronized (this) {
+                try {
+                    connection.setAutoCommit(false);
+                    try (PreparedStatement statement = connection.prepareStatement("INSERT OR IGNORE INTO users (world, name) VALUES (?, ?)")) {
+                        statement.setString(1, worldName);
+                        statement.setString(2, userName);
+                        statement.executeUpdate();
+                    }
+                    syncRows(USER_PERMISSIONS, worldName, userName, permissions);
+                    syncRows(USER_GROUPS, worldName, userName, groups);
+                    syncRows(USER_META, worldName, userName, meta);
+                    connection.commit();
+                    return true;
+                } catch (SQLException e) {
+                    rollback();
+                    plugin.getLogger().log(Level.SEVERE, "Could not save user " + userName + " of world " + worldName, e);
+                    return false;
+                } finally {
+                    resetAutoCommit();
+                }
+            }
+        };
+    }
+
+    @Override
+    public SaveTask deleteUser(String worldName, String userName) {
+        return () -> {
+            synchronized (this) {
+                try {
+                    connection.setAutoCommit(false);
+                    deleteUserRows(worldName, userName);
+                    connection.commit();
+                    return true;
+                } catch (SQLException e) {
+                    rollback();
+                    plugin.getLogger().log(Level.SEVERE, "Could not delete user " + userName + " of world " + worldName, e);
+                    return false;
+                } finally {
+                    resetAutoCommit();
+                }
+            }
+        };
+    }
+
+    /**
+     * Deletes every row of a user.
+     *
+     * @param worldName the lower-cased world name
+     * @param userName the lower-cased user name
+     * @throws SQLException if a statement fails
+     */
+    private void deleteUserRows(String worldName, String userName) throws SQLException {
+        delete("DELETE FROM users WHERE world = ? AND name = ?", worldName, userName);
+        for (String table : USER_TABLES) {
+            delete("DELETE FROM " + table + " WHERE world = ? AND user = ?", worldName, userName);
+        }
+    }
+
+    /**
+     * Runs a delete statement.
+     *
+     * @param sql the statement
+     * @param parameters the statement parameters
+     * @throws SQLException if the statement fails
+     */
+    private void delete(String sql, String... parameters) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setString(i + 1, parameters[i]);
+            }
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Brings the stored rows of a table in line with the data: rows that are missing or
+     * have a different value are upserted, and rows that are no longer there are deleted,
+     * each as a single prepared batch. Rows that did not change are not written.
+     *
+     * @param table the table
+     * @param worldName the lower-cased world name
+     * @param owner the owner whose rows are compared, or null for all rows of the world
+     * @param rows the value of each row that should be stored, by key
+     * @throws SQLException if a statement fails
+     */
+    private void syncRows(Table table, String worldName, String owner, Map<List<String>, Object> rows) throws SQLException {
+        String[] keys = table.keyColumns;
+        String scope = "world = ?" + (owner != null ? " AND " + table.ownerColumn + " = ?" : "");
+        int first = owner != null ? 3 : 2;
+
+        Map<List<String>, Object> stored = new HashMap<>();
+        String columns = String.join(", ", keys) + (table.valueColumn != null ? ", " + table.valueColumn : "");
+        try (PreparedStatement statement = connection.prepareStatement("SELECT " + columns + " FROM " + table.name + " WHERE " + scope)) {
+            statement.setString(1, worldName);
+            if (owner != null) {
+                statement.setString(2, owner);
+            }
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    List<String> key = new ArrayList<>(keys.length);
+                    for (int i = 0; i < keys.length; i++) {
+                        key.add(result.getString(i + 1));
+                    }
+                    stored.put(key, table.valueColumn != null ? normalize(result.getObject(keys.length + 1)) : null);
+                }
+            }
+        }
+
+        List<Object[]> upserts = new ArrayList<>();
+        for (Map.Entry<List<String>, Object> row : rows.entrySet()) {
+            Object value = normalize(row.getValue());
+            if (stored.containsKey(row.getKey()) && Objects.equals(stored.get(row.getKey()), value)) {
+                continue;
+            }
+            Object[] parameters = new Object[first - 1 + keys.length + (table.valueColumn != null ? 1 : 0)];
+            parameters[0] = worldName;
+            if (owner != null) {
+                parameters[1] = owner;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                parameters[first - 1 + i] = row.getKey().get(i);
+            }
+            if (table.valueColumn != null) {
+                parameters[parameters.length - 1] = value;
+            }
+            upserts.add(parameters);
+        }
+
+        List<Object[]> deletes = new ArrayList<>();
+        for (List<String> key : stored.keySet()) {
+            if (rows.containsKey(key)) {
+                continue;
+            }
+            Object[] parameters = new Object[first - 1 + keys.length];
+            parameters[0] = worldName;
+            if (owner != null) {
+                parameters[1] = owner;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                parameters[first - 1 + i] = key.get(i);
+            }
+            deletes.add(parameters);
+        }
+
+        if (!deletes.isEmpty()) {
+            StringBuilder sql = new StringBuilder("DELETE FROM ").append(table.name).append(" WHERE ").append(scope);
+            for (String key : keys) {
+                sql.append(" AND ").append(key).append(" = ?");
+            }
+            executeBatch(sql.toString(), deletes);
+        }
+        if (!upserts.isEmpty()) {
+            String insertColumns = "world, " + (owner != null ? table.ownerColumn + ", " : "") + columns;
+            String placeholders = String.join(", ", Collections.nCopies(upserts.get(0).length, "?"));
+            executeBatch("INSERT OR REPLACE INTO " + table.name + " (" + insertColumns + ") VALUES (" + placeholders + ")", upserts);
+        }
+    }
+
+    /**
+     * Brings numbers read from the database and from the model to the same type, so they can be compared.
+     *
+     * @param value the value
+     * @return the value, with whole numbers as longs
+     */
+    private static Object normalize(Object value) {
+        return value instanceof Number ? (Object) ((Number) value).longValue() : value;
+    }
+
+    /**
+     * Runs a statement for each row as a single prepared batch.
+     *
+     * @param sql the statement
+     * @param rows the parameter values of each row
+     * @throws SQLException if the batch fails
+     */
+    private void executeBatch(String sql, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    statement.setObject(i + 1, row[i]);
+                }
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Rolls back the current transaction after a failure.
+     */
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not roll back database transaction", e);
+        }
+    }
+
+    /**
+     * Returns the connection to auto-commit mode after a transaction.
+     */
+    private void resetAutoCommit() {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not reset database auto-commit", e);
+        }
+    }
+
+    /**
+     * The layout of a table as far as saves are concerned.
+     */
+    private static final class Table {
+        private final String name;
+        private final String ownerColumn;
+        private final String[] keyColumns;
+        private final String valueColumn;
+
+        /**
+         * Describes a table.
+         *
+         * @param name the table name
+         * @param ownerColumn the column naming the user the row belongs to, or null if rows are compared per world
+         * @param keyColumns the other columns of the primary key, after the world and owner
+         * @param valueColumn the column holding the value, or null if the key is all there is
+         */
+        private Table(String name, String ownerColumn, String[] keyColumns, String valueColumn) {
+            this.name = name;
+            this.ownerColumn = ownerColumn;
+            this.keyColumns = keyColumns;
+            this.valueColumn = valueColumn;
+        }
+    }
+}
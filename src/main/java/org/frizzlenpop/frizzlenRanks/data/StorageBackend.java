@@ -0,0 +1,109 @@
+package org.frizzlenpop.frizzlenRanks.data;
+
+import org.frizzlenpop.frizzlenRanks.model.User;
+import org.frizzlenpop.frizzlenRanks.model.World;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Stores groups and users of each world.
+ * Save methods copy the data they need on the calling thread and return the
+ * actual write, so the caller can run it on a background thread. The write
+ * reports whether it succeeded, so a failed save keeps the journal.
+ */
+public interface StorageBackend {
+
+    /**
+     * Gets the name of this backend as used in the config.
+     *
+     * @return the backend name
+     */
+    String getName();
+
+    /**
+     * Prepares the storage for use.
+     *
+     * @return true if the storage is ready
+     */
+    boolean open();
+
+    /**
+     * Releases the storage.
+     */
+    void close();
+
+    /**
+     * Gets the names of all worlds that have stored data.
+     *
+     * @return the lower-cased world names
+     */
+    Collection<String> getWorldNames();
+
+    /**
+     * Checks if groups have been stored for a world.
+     *
+     * @param worldName the lower-cased world name
+     * @return true if the world has stored groups
+     */
+    boolean hasGroups(String worldName);
+
+    /**
+     * Loads the stored groups of a world into it.
+     *
+     * @param world the world to load groups into
+     */
+    void loadGroups(World world);
+
+    /**
+     * Copies the groups of a world for saving.
+     *
+     * @param world the world to save groups from
+     * @return the task that writes the copied groups
+     */
+    SaveTask saveGroups(World world);
+
+    /**
+     * Gets the names of all users stored for a world.
+     *
+     * @param worldName the lower-cased world name
+     * @return the lower-cased user names
+     */
+    Collection<String> getUserNames(String worldName);
+
+    /**
+     * Gets when the first temporary permission or group of each user in a world expires,
+     * read from an index so no user has to be loaded.
+     *
+     * @param worldName the lower-cased world name
+     * @return the earliest expiration timestamp by lower-cased user name, for users with temporary entries
+     */
+    Map<String, Long> getExpiries(String worldName);
+
+    /**
+     * Loads a stored user. Temporary permissions and groups that have already expired are skipped.
+     *
+     * @param worldName the lower-cased world name
+     * @param user the empty user to load into
+     * @return true if the user was found
+     */
+    boolean loadUser(String worldName, User user);
+
+    /**
+     * Copies a user for saving.
+     *
+     * @param worldName the lower-cased world name
+     * @param user the user to save
+     * @return the task that writes the copied user
+     */
+    SaveTask saveUser(String worldName, User user);
+
+    /**
+     * Creates a task that deletes a stored user.
+     *
+     * @param worldName the lower-cased world name
+     * @param userName the lower-cased user name
+     * @return the task that deletes the user
+     */
+    SaveTask deleteUser(String worldName, String userName);
+}
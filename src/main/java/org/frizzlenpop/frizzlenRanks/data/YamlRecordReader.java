@@ -0,0 +1,232 @@
+package org.frizzlenpop.frizzlenRanks.data;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.ScalarEvent;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads a YAML file one event at a time, so records can be copied straight into the
+ * model without building a tree of configuration sections first. Only what the data
+ * files use is supported: mappings with string keys, lists of strings and scalars.
+ * Values of an unexpected shape are skipped, the same as a configuration lookup of
+ * the wrong type returns nothing.
+ *
+ * <p>Scalars are returned as they are written, so numbers and booleans in lists come
+ * back as the text of the number, as they do from a configuration.</p>
+ */
+final class YamlRecordReader implements Closeable {
+    private final Reader reader;
+    private final Iterator<Event> events;
+    private Event peeked;
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param file the YAML file, encoded in UTF-8
+     * @throws IOException if the file cannot be opened
+     */
+    YamlRecordReader(File file) throws IOException {
+        this.reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+
+        // Same limit as Bukkit's configurations, so large files still load
+        LoaderOptions options = new LoaderOptions();
+        options.setCodePointLimit(Integer.MAX_VALUE);
+        this.events = new Yaml(options).parse(reader).iterator();
+    }
+
+    /**
+     * Enters the root mapping of the document.
+     *
+     * @return false if the file is empty or its root is not a mapping
+     */
+    boolean beginDocument() {
+        while (peek() != null && (peek().is(Event.ID.StreamStart) || peek().is(Event.ID.DocumentStart))) {
+            next();
+        }
+        return beginMapping();
+    }
+
+    /**
+     * Enters the mapping the reader is at. Anything else is skipped.
+     *
+     * @return true if a mapping was entered, false if the value was something else
+     */
+    boolean beginMapping() {
+        Event event = peek();
+        if (event != null && event.is(Event.ID.MappingStart)) {
+            next();
+            return true;
+        }
+        skipValue();
+        return false;
+    }
+
+    /**
+     * Reads the next key of the current mapping. Once it returns null the mapping is left.
+     * Keys that are not scalars are skipped along with their values.
+     *
+     * @return the key, or null at the end of the mapping
+     */
+    String nextKey() {
+        while (true) {
+            Event event = peek();
+            if (event == null) {
+                return null;
+            }
+            if (event.is(Event.ID.MappingEnd)) {
+                next();
+                return null;
+            }
+            if (event instanceof ScalarEvent) {
+                next();
+                return ((ScalarEvent) event).getValue();
+            }
+
+            // A complex key and its value
+            skipValue();
+            skipValue();
+        }
+    }
+
+    /**
+     * Reads a scalar value.
+     *
+     * @return the value, or null if it is a null or not a scalar
+     */
+    String nextString() {
+        Event event = peek();
+        if (!(event instanceof ScalarEvent)) {
+            skipValue();
+            return null;
+        }
+
+        next();
+        ScalarEvent scalar = (ScalarEvent) event;
+        return isNull(scalar) ? null : scalar.getValue();
+    }
+
+    /**
+     * Reads a whole number.
+     *
+     * @param fallback the value to use if there is no number
+     * @return the number, with any fraction dropped
+     */
+    int nextInt(int fallback) {
+        String value = nextString();
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            try {
+                return (int) Double.parseDouble(value.trim());
+            } catch (NumberFormatException ignored) {
+                return fallback;
+            }
+        }
+    }
+
+    /**
+     * Reads a list of scalars. Null and nested entries are left out.
+     *
+     * @return the entries, or an empty list if the value is not a list
+     */
+    List<String> nextStringList() {
+        List<String> values = new ArrayList<>();
+        Event event = peek();
+        if (event == null || !event.is(Event.ID.SequenceStart)) {
+            skipValue();
+            return values;
+        }
+
+        next();
+        while (peek() != null && !peek().is(Event.ID.SequenceEnd)) {
+            String value = nextString();
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        next();
+        return values;
+    }
+
+    /**
+     * Skips the value the reader is at, including everything nested in it.
+     * Does nothing at the end of a mapping or list.
+     */
+    void skipValue() {
+        Event first = peek();
+        if (first == null || first.is(Event.ID.MappingEnd) || first.is(Event.ID.SequenceEnd)
+                || first.is(Event.ID.DocumentEnd) || first.is(Event.ID.StreamEnd)) {
+            return;
+        }
+
+        int depth = 0;
+        do {
+            Event event = next();
+            if (event == null) {
+                return;
+            }
+            if (event.is(Event.ID.MappingStart) || event.is(Event.ID.SequenceStart)) {
+                depth++;
+            } else if (event.is(Event.ID.MappingEnd) || event.is(Event.ID.SequenceEnd)) {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Checks if a scalar is written as a null, such as ~ or an empty value.
+     *
+     * @param scalar the scalar
+     * @return true if it means null
+     */
+    private static boolean isNull(ScalarEvent scalar) {
+        if (scalar.getScalarStyle() != DumperOptions.ScalarStyle.PLAIN || scalar.getTag() != null) {
+            return false;
+        }
+        String value = scalar.getValue();
+        return value.isEmpty() || value.equals("~") || value.equals("null") || value.equals("Null") || value.equals("NULL");
+    }
+
+    /**
+     * Looks at the next event without consuming it.
+     *
+     * @return the event, or null at the end of the file
+     */
+    private Event peek() {
+        if (peeked == null && events.hasNext()) {
+            peeked = events.next();
+        }
+        return peeked;
+    }
+
+    /**
+     * Consumes the next event.
+     *
+     * @return the event, or null at the end of the file
+     */
+    private Event next() {
+        Event event = peek();
+        peeked = null;
+        return event;
+    }
+}
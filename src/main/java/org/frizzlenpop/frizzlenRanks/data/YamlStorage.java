@@ -0,0 +1,805 @@
+package org.frizzlenpop.frizzlenRanks.data;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
+import org.frizzlenpop.frizzlenRanks.model.Group;
+import org.frizzlenpop.frizzlenRanks.model.Track;
+import org.frizzlenpop.frizzlenRanks.model.User;
+import org.frizzlenpop.frizzlenRanks.model.World;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Stores data as YAML files: groups.yml per world and one file per user,
+ * under global/ and worlds/&lt;world&gt;/.
+ *
+ * <p>If a binary snapshot was written on the last shutdown, each file whose size and
+ * modification time still match those recorded in the snapshot is read from the
+ * snapshot instead of being parsed again.</p>
+ */
+public class YamlStorage implements StorageBackend {
+    private final FrizzlenRanks plugin;
+
+    // Replaces files through a temporary file, so a crash never leaves one half written
+    private final AtomicFileWriter fileWriter;
+
+    // The earliest expiry of each user with temporary entries, by world, mirrored in expiries.yml
+    private final Map<String, Map<String, Long>> expiryIndex;
+
+    // The snapshot written on the last shutdown, or null if there is none
+    private ModelSnapshot snapshot;
+
+    /**
+     * Creates a new YamlStorage.
+     *
+     * @param plugin the plugin instance
+     * @param fileWriter the writer that replaces the data files
+     */
+    public YamlStorage(FrizzlenRanks plugin, AtomicFileWriter fileWriter) {
+        this.plugin = plugin;
+        this.fileWriter = fileWriter;
+        this.expiryIndex = new HashMap<>();
+    }
+
+    @Override
+    public String getName() {
+        return "yaml";
+    }
+
+    @Override
+    public boolean open() {
+        File dataFolder = plugin.getDataFolder();
+        new File(dataFolder, "worlds").mkdirs();
+        new File(dataFolder, "global").mkdirs();
+
+        // Nothing is being written yet, so any temporary file is left over from a crash
+        int deleted = fileWriter.deleteTempFiles(dataFolder);
+        if (deleted > 0) {
+            plugin.getLogger().info("Deleted " + deleted + " temporary files left over from an interrupted save");
+        }
+
+        // Split any legacy users.yml into per-user files
+        for (String worldName : getWorldNames()) {
+            File usersFile = new File(getWorldDirectory(worldName), "users.yml");
+            if (usersFile.exists()) {
+                migrateUsers(worldName, usersFile);
+            }
+        }
+
+        if (plugin.getConfigManager().useSnapshot()) {
+            openSnapshot();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the snapshot written on the last shutdown, if there is a valid one.
+     */
+    private void openSnapshot() {
+        File file = getSnapshotFile();
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            snapshot = ModelSnapshot.open(file);
+            plugin.getLogger().info("Using the data snapshot written at " + new Date(snapshot.getCreatedAt())
+                    + " for files not changed since");
+        } catch (IOException e) {
+            plugin.getLogger().warning("Ignoring the data snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks if a file can be read from the snapshot instead, because it still has the
+     * size and modification time it had when the snapshot was built. Comparing both
+     * also catches files restored from a backup with their old modification times.
+     *
+     * @param file the YAML file
+     * @return true if the snapshot holds the current contents of the file
+     */
+    private boolean inSnapshot(File file) {
+        return snapshot != null && file.exists()
+                && snapshot.isCurrent(getRelativePath(file), file.length(), file.lastModified());
+    }
+
+    /**
+     * Records the size and modification time of a file in a snapshot being written, if it exists.
+     *
+     * @param writer the snapshot being written
+     * @param file the YAML file
+     */
+    private void addSnapshotFile(ModelSnapshot.Writer writer, File file) {
+        if (file.exists()) {
+            writer.addFile(getRelativePath(file), file.length(), file.lastModified());
+        }
+    }
+
+    /**
+     * Gets the path of a file relative to the data folder, the same on every platform.
+     *
+     * @param file the file
+     * @return the path, separated by "/"
+     */
+    private String getRelativePath(File file) {
+        return plugin.getDataFolder().getAbsoluteFile().toPath()
+                .relativize(file.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Gets the tracks from the snapshot, if tracks.yml was not changed since it was written.
+     *
+     * @param tracksFile the tracks file
+     * @return the groups of each track by name, or null if the file must be read
+     */
+    public Map<String, List<String>> getSnapshotTracks(File tracksFile) {
+        return inSnapshot(tracksFile) ? snapshot.getTracks() : null;
+    }
+
+    /**
+     * Writes a snapshot of all groups, users and tracks, so the next start can skip parsing
+     * the files. Loaded worlds and users are taken from memory, so pending changes must be
+     * saved first. Users that are not loaded are copied from the previous snapshot when
+     * their file did not change since, and only parsed from YAML otherwise; none of them
+     * are added to their world. Runs on the save thread.
+     *
+     * @param loadedWorlds the worlds in memory
+     * @param tracks the tracks
+     * @param cancelled set to stop before the snapshot is complete, leaving the previous one in place
+     */
+    public void writeSnapshot(Collection<World> loadedWorlds, Collection<Track> tracks, AtomicBoolean cancelled) {
+        long start = System.nanoTime();
+        Map<String, World> loaded = new HashMap<>();
+        for (World world : loadedWorlds) {
+            loaded.put(world.getName(), world);
+        }
+
+        ModelSnapshot.Writer writer = new ModelSnapshot.Writer();
+        writer.addTracks(tracks);
+        addSnapshotFile(writer, new File(plugin.getDataFolder(), "tracks.yml"));
+        int users = 0;
+        try {
+            for (String worldName : getWorldNames()) {
+                World world = loaded.get(worldName);
+                if (world == null) {
+                    world = new World(worldName);
+                    if (hasGroups(worldName)) {
+                        loadGroups(world);
+                    }
+                }
+
+                writer.beginWorld();
+                for (Group group : world.getGroups()) {
+                    writer.addGroup(group);
+                }
+                addSnapshotFile(writer, new File(getWorldDirectory(worldName), "groups.yml"));
+                addSnapshotFile(writer, new File(getWorldDirectory(worldName), "expiries.yml"));
+                for (String userName : getUserNames(worldName)) {
+                    if (cancelled.get()) {
+                        return;
+                    }
+
+                    User user = world.getLoadedUser(userName);
+                    if (user != null) {
+                        writer.addUser(user);
+                    } else if (!copySnapshotUser(worldName, userName, writer)) {
+                        user = new User(userName);
+                        if (!loadUser(worldName, user)) {
+                            continue;
+                        }
+                        writer.addUser(user);
+                    }
+                    addSnapshotFile(writer, getUserFile(worldName, userName));
+                    users++;
+                }
+                writer.endWorld(worldName, getExpiries(worldName));
+            }
+            if (cancelled.get()) {
+                return;
+            }
+            writer.write(getSnapshotFile());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not write the data snapshot", e);
+            return;
+        }
+
+        plugin.getLogger().info(String.format("Wrote a data snapshot of %d users in %d ms",
+                users, (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * Copies a user that is not loaded from the previous snapshot, if its file did not change since.
+     *
+     * @param worldName the lower-cased world name
+     * @param userName the lower-cased user name
+     * @param writer the snapshot being written
+     * @return false if the user must be read from its file instead
+     * @throws IOException never, as the data is written to memory
+     */
+    private boolean copySnapshotUser(String worldName, String userName, ModelSnapshot.Writer writer) throws IOException {
+        return inSnapshot(getUserFile(worldName, userName)) && snapshot.copyUser(worldName, userName, writer);
+    }
+
+    @Override
+    public void close() {
+        // Files are closed after every write
+    }
+
+    @Override
+    public Collection<String> getWorldNames() {
+        List<String> worldNames = new ArrayList<>();
+        worldNames.add("global");
+
+        File[] worldDirs = new File(plugin.getDataFolder(), "worlds").listFiles(File::isDirectory);
+        if (worldDirs != null) {
+            for (File worldDir : worldDirs) {
+                worldNames.add(worldDir.getName().toLowerCase());
+            }
+        }
+        return worldNames;
+    }
+
+    @Override
+    public boolean hasGroups(String worldName) {
+        return new File(getWorldDirectory(worldName), "groups.yml").exists();
+    }
+
+    @Override
+    public void loadGroups(World world) {
+        File file = new File(getWorldDirectory(world.getName()), "groups.yml");
+        plugin.getLogger().fine("Loading groups from: " + file.getAbsolutePath());
+
+        if (inSnapshot(file) && snapshot.hasWorld(world.getName())) {
+            snapshot.loadGroups(world);
+            plugin.getLogger().info("Loaded " + world.getGroups().size() + " groups for world " + world.getName() + " from the snapshot");
+            return;
+        }
+
+        // Groups are copied into the world as they are read, without building a configuration first
+        boolean foundGroups = false;
+        int groupsLoaded = 0;
+        try (YamlRecordReader reader = new YamlRecordReader(file)) {
+            if (reader.beginDocument()) {
+                for (String key = reader.nextKey(); key != null; key = reader.nextKey()) {
+                    if (!key.equals("groups")) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    if (!reader.beginMapping()) {
+                        continue;
+                    }
+
+                    foundGroups = true;
+                    for (String groupName = reader.nextKey(); groupName != null; groupName = reader.nextKey()) {
+                        Group group = world.getGroup(groupName);
+                        if (!reader.beginMapping()) {
+                            continue;
+                        }
+
+                        readGroup(reader, group);
+                        groupsLoaded++;
+                        plugin.getLogger().fine("Loaded group: " + groupName + " with " + group.getPermissions().size() +
+                                               " permissions and prefix: " + group.getMeta("prefix"));
+                    }
+                }
+            }
+        } catch (IOException | YAMLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load " + file.getPath(), e);
+        }
+
+        if (!foundGroups) {
+            plugin.getLogger().warning("No groups section found in " + file.getPath());
+            return;
+        }
+        plugin.getLogger().info("Loaded " + groupsLoaded + " groups for world " + world.getName() + " from " + file.getPath());
+    }
+
+    /**
+     * Reads the settings of a group, after its mapping was entered.
+     *
+     * @param reader the reader, positioned at the group's first key
+     * @param group the group to load into
+     */
+    private void readGroup(YamlRecordReader reader, Group group) {
+        for (String key = reader.nextKey(); key != null; key = reader.nextKey()) {
+            switch (key) {
+                case "permissions":
+                    for (String permission : reader.nextStringList()) {
+                        group.addPermission(permission);
+                    }
+                    break;
+                case "inheritance":
+                    for (String parent : reader.nextStringList()) {
+                        if (!group.addInheritance(parent)) {
+                            plugin.getLogger().warning("Ignoring circular inheritance of group " + group.getName() + " from " + parent);
+                        }
+                    }
+                    break;
+                case "priority":
+                    group.setPriority(reader.nextInt(0));
+                    break;
+                case "meta":
+                    if (reader.beginMapping()) {
+                        for (String metaKey = reader.nextKey(); metaKey != null; metaKey = reader.nextKey()) {
+                            group.setMeta(metaKey, reader.nextString());
+                        }
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public SaveTask saveGroups(World world) {
+        FileConfiguration config = new YamlConfiguration();
+        ConfigurationSection groupsSection = config.createSection("groups");
+
+        for (Group group : world.getGroups()) {
+            ConfigurationSection groupSection = groupsSection.createSection(group.getName());
+
+            // Save permissions
+            groupSection.set("permissions", new ArrayList<>(group.getPermissions()));
+
+            // Save inheritance
+            groupSection.set("inheritance", new ArrayList<>(group.getInheritance()));
+
+            // Save priority
+            groupSection.set("priority", group.getPriority());
+
+            // Save metadata
+            ConfigurationSection metaSection = groupSection.createSection("meta");
+            for (Map.Entry<String, String> entry : group.getMeta().entrySet()) {
+                metaSection.set(entry.getKey(), entry.getValue());
+            }
+        }
+
+        File file = new File(getWorldDirectory(world.getName()), "groups.yml");
+        return () -> write(config, file);
+    }
+
+    @Override
+    public Collection<String> getUserNames(String worldName) {
+        List<String> userNames = new ArrayList<>();
+        File[] shards = new File(getWorldDirectory(worldName), "users").listFiles(File::isDirectory);
+        if (shards == null) {
+            return userNames;
+        }
+
+        for (File shard : shards) {
+            File[] files = shard.listFiles((dir, fileName) -> fileName.endsWith(".yml"));
+            if (files == null) {
+                continue;
+            }
+
+            for (File file : files) {
+                String fileName = file.getName();
+                userNames.add(decodeFileName(fileName.substring(0, fileName.length() - 4)));
+            }
+        }
+        return userNames;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getExpiries(String worldName) {
+        return new HashMap<>(getExpiryIndex(worldName));
+    }
+
+    @Override
+    public boolean loadUser(String worldName, User user) {
+        File file = getUserFile(worldName, user.getName());
+        if (!file.exists() && !moveLegacyUserFile(worldName, user.getName(), file)) {
+            return false;
+        }
+
+        if (inSnapshot(file) && snapshot.loadUser(worldName, user)) {
+            return true;
+        }
+
+        try (YamlRecordReader reader = new YamlRecordReader(file)) {
+            if (reader.beginDocument()) {
+                readUser(reader, user);
+            }
+        } catch (IOException | YAMLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load " + file.getPath(), e);
+        }
+        return true;
+    }
+
+    @Override
+    public SaveTask saveUser(String worldName, User user) {
+        FileConfiguration config = buildUser(user);
+        File file = getUserFile(worldName, user.getName());
+        long nextExpiry = user.getNextExpiry();
+        return () -> {
+            boolean saved = write(config, file);
+            return updateExpiry(worldName, user.getName().toLowerCase(), nextExpiry) && saved;
+        };
+    }
+
+    @Override
+    public SaveTask deleteUser(String worldName, String userName) {
+        File file = getUserFile(worldName, userName);
+        return () -> {
+            boolean deleted = true;
+            if (file.exists() && !file.delete()) {
+                plugin.getLogger().warning("Could not delete " + file.getPath());
+                deleted = false;
+            }
+            return updateExpiry(worldName, userName.toLowerCase(), 0) && deleted;
+        };
+    }
+
+    /**
+     * Reads the data of a user, after its mapping was entered.
+     *
+     * @param reader the reader, positioned at the user's first key
+     * @param user the user to load into
+     */
+    private void readUser(YamlRecordReader reader, User user) {
+        // Temporary permissions and groups that expired while stored are skipped
+        long now = System.currentTimeMillis();
+        for (String key = reader.nextKey(); key != null; key = reader.nextKey()) {
+            switch (key) {
+                case "permissions":
+                    for (String permission : reader.nextStringList()) {
+                        user.addPermission(permission);
+                    }
+                    break;
+                case "groups":
+                    for (String group : reader.nextStringList()) {
+                        user.addGroup(group);
+                    }
+                    break;
+                case "temporary-permissions":
+                    for (String entry : reader.nextStringList()) {
+                        long expiry = parseExpiry(entry);
+                        if (expiry > now) {
+                            user.addTemporaryPermission(entry.substring(entry.indexOf(' ') + 1), expiry);
+                        }
+                    }
+                    break;
+                case "temporary-groups":
+                    for (String entry : reader.nextStringList()) {
+                        long expiry = parseExpiry(entry);
+                        if (expiry > now) {
+                            user.addTemporaryGroup(entry.substring(entry.indexOf(' ') + 1), expiry);
+                        }
+                    }
+                    break;
+                case "meta":
+                    if (reader.beginMapping()) {
+                        for (String metaKey = reader.nextKey(); metaKey != null; metaKey = reader.nextKey()) {
+                            user.setMeta(metaKey, reader.nextString());
+                        }
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Reads the expiration timestamp in front of a temporary entry.
+     *
+     * @param entry the entry, written as "&lt;expiry&gt; &lt;name&gt;"
+     * @return the timestamp, or 0 if the entry is malformed
+     */
+    private long parseExpiry(String entry) {
+        int space = entry.indexOf(' ');
+        if (space <= 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(entry.substring(0, space));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes temporary entries as "&lt;expiry&gt; &lt;name&gt;" strings, soonest first.
+     * Permission nodes contain dots, so they can't be used as YAML keys.
+     *
+     * @param entries the entries with their expiration timestamps
+     * @return the encoded entries
+     */
+    private List<String> encodeTemporary(Map<String, Long> entries) {
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(entries.entrySet());
+        sorted.sort(Map.Entry.comparingByValue());
+
+        List<String> encoded = new ArrayList<>(sorted.size());
+        for (Map.Entry<String, Long> entry : sorted) {
+            encoded.add(entry.getValue() + " " + entry.getKey());
+        }
+        return encoded;
+    }
+
+    /**
+     * Copies a user into a new configuration.
+     *
+     * @param user the user to copy
+     * @return the configuration holding the user
+     */
+    private FileConfiguration buildUser(User user) {
+        FileConfiguration config = new YamlConfiguration();
+        config.set("name", user.getName());
+
+        // Save permissions
+        config.set("permissions", new ArrayList<>(user.getPermanentPermissions()));
+
+        // Save groups
+        config.set("groups", new ArrayList<>(user.getPermanentGroups()));
+
+        // Save temporary permissions and groups with their expiry
+        Map<String, Long> temporaryPermissions = user.getTemporaryPermissions();
+        if (!temporaryPermissions.isEmpty()) {
+            config.set("temporary-permissions", encodeTemporary(temporaryPermissions));
+        }
+        Map<String, Long> temporaryGroups = user.getTemporaryGroups();
+        if (!temporaryGroups.isEmpty()) {
+            config.set("temporary-groups", encodeTemporary(temporaryGroups));
+        }
+
+        // Save metadata
+        ConfigurationSection metaSection = config.createSection("meta");
+        for (Map.Entry<String, String> entry : user.getMeta().entrySet()) {
+            metaSection.set(entry.getKey(), entry.getValue());
+        }
+
+        return config;
+    }
+
+    /**
+     * Moves the users of a legacy users.yml into one file per user.
+     * The old file is kept as users.yml.migrated.
+     *
+     * @param worldName the lower-cased world name
+     * @param file the legacy users file
+     */
+    private void migrateUsers(String worldName, File file) {
+        // The legacy file can be large, so each user is written out as soon as it is read
+        int migrated = 0;
+        try (YamlRecordReader reader = new YamlRecordReader(file)) {
+            if (reader.beginDocument()) {
+                for (String key = reader.nextKey(); key != null; key = reader.nextKey()) {
+                    if (!key.equals("users")) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    if (!reader.beginMapping()) {
+                        continue;
+                    }
+
+                    for (String userName = reader.nextKey(); userName != null; userName = reader.nextKey()) {
+                        if (!reader.beginMapping()) {
+                            continue;
+                        }
+
+                        User user = new User(userName.toLowerCase());
+                        readUser(reader, user);
+                        write(buildUser(user), getUserFile(worldName, userName));
+                        migrated++;
+                    }
+                }
+            }
+        } catch (IOException | YAMLException e) {
+            // The users read so far are kept; the rest stay in the renamed file
+            plugin.getLogger().log(Level.SEVERE, "Could not migrate " + file.getPath(), e);
+        }
+
+        File migratedFile = new File(file.getParentFile(), "users.yml.migrated");
+        if (!file.renameTo(migratedFile)) {
+            plugin.getLogger().warning("Could not rename " + file.getPath() + " after migrating it");
+        }
+        plugin.getLogger().info("Migrated " + migrated + " users of world " + worldName + " to per-user files");
+    }
+
+    /**
+     * Gets the expiry index of a world, reading it from expiries.yml on first use.
+     *
+     * @param worldName the lower-cased world name
+     * @return the index, by lower-cased user name
+     */
+    private synchronized Map<String, Long> getExpiryIndex(String worldName) {
+        return expiryIndex.computeIfAbsent(worldName, name -> {
+            File file = new File(getWorldDirectory(name), "expiries.yml");
+            if (inSnapshot(file) && snapshot.hasWorld(name)) {
+                return new HashMap<>(snapshot.getExpiries(name));
+            }
+
+            Map<String, Long> index = new HashMap<>();
+            if (file.exists()) {
+                ConfigurationSection usersSection = YamlConfiguration.loadConfiguration(file).getConfigurationSection("users");
+                if (usersSection != null) {
+                    for (String userName : usersSection.getKeys(false)) {
+                        index.put(userName, usersSection.getLong(userName));
+                    }
+                }
+            }
+            return index;
+        });
+    }
+
+    /**
+     * Records when a user's first temporary entry expires, rewriting expiries.yml if it changed.
+     *
+     * @param worldName the lower-cased world name
+     * @param userName the lower-cased user name
+     * @param nextExpiry the earliest expiration timestamp, or 0 if the user has no temporary entries
+     * @return false if expiries.yml could not be written
+     */
+    private synchronized boolean updateExpiry(String worldName, String userName, long nextExpiry) {
+        Map<String, Long> index = getExpiryIndex(worldName);
+        Long previous = nextExpiry > 0 ? index.put(userName, nextExpiry) : index.remove(userName);
+        if (previous != null ? previous == nextExpiry : nextExpiry == 0) {
+            return true;
+        }
+
+        FileConfiguration config = new YamlConfiguration();
+        ConfigurationSection usersSection = config.createSection("users");
+        for (Map.Entry<String, Long> entry : index.entrySet()) {
+            usersSection.set(entry.getKey(), entry.getValue());
+        }
+        return write(config, new File(getWorldDirectory(worldName), "expiries.yml"));
+    }
+
+    /**
+     * Writes a configuration to a file, replacing the file atomically.
+     *
+     * @param config the configuration to write
+     * @param file the file to write to
+     * @return false if the file could not be written
+     */
+    private boolean write(FileConfiguration config, File file) {
+        return fileWriter.write(file, config.saveToString());
+    }
+
+    /**
+     * Gets the file the snapshot is stored in.
+     *
+     * @return the snapshot file
+     */
+    private File getSnapshotFile() {
+        return new File(plugin.getDataFolder(), "snapshot.bin");
+    }
+
+    /**
+     * Gets the directory a world's data is stored in.
+     *
+     * @param worldName the lower-cased world name
+     * @return the world's data directory
+     */
+    private File getWorldDirectory(String worldName) {
+        if (worldName.equalsIgnoreCase("global")) {
+            return new File(plugin.getDataFolder(), "global");
+        }
+        return new File(plugin.getDataFolder(), "worlds/" + worldName);
+    }
+
+    /**
+     * Gets the file a user is stored in.
+     * Users are spread over shard directories named after the first two characters
+     * of their file name, so no single directory grows too large.
+     *
+     * @param worldName the lower-cased world name
+     * @param userName the name of the user
+     * @return the user's file
+     * @throws IllegalArgumentException if the file would end up outside the users directory
+     */
+    private File getUserFile(String worldName, String userName) {
+        String fileName = encodeFileName(userName.toLowerCase());
+        String shard = fileName.length() >= 2 ? fileName.substring(0, 2) : fileName + "_";
+        File usersDirectory = new File(getWorldDirectory(worldName), "users");
+        File file = new File(usersDirectory, shard + File.separator + fileName + ".yml");
+
+        // Names come from commands and other plugins; encoding should already prevent this
+        try {
+            if (!file.getCanonicalPath().startsWith(usersDirectory.getCanonicalPath() + File.separator)) {
+                throw new IllegalArgumentException("Invalid user name: " + userName);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid user name: " + userName, e);
+        }
+        return file;
+    }
+
+    /**
+     * Moves the file of a user whose name needs encoding from where it was stored
+     * before names were encoded, if it is there.
+     *
+     * @param worldName the lower-cased world name
+     * @param userName the name of the user
+     * @param file the user's current file
+     * @return true if a file was moved into place
+     */
+    private boolean moveLegacyUserFile(String worldName, String userName, File file) {
+        String lowerName = userName.toLowerCase();
+        if (encodeFileName(lowerName).equals(lowerName)) {
+            return false;
+        }
+
+        String shard = lowerName.length() >= 2 ? lowerName.substring(0, 2) : lowerName + "_";
+        File usersDirectory = new File(getWorldDirectory(worldName), "users");
+        File legacy = new File(usersDirectory, shard + File.separator + lowerName + ".yml");
+        try {
+            if (!legacy.isFile() || !legacy.getCanonicalPath().startsWith(usersDirectory.getCanonicalPath() + File.separator)) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        file.getParentFile().mkdirs();
+        return legacy.renameTo(file);
+    }
+
+    /**
+     * Encodes a user name for use as a file name. Letters, digits, underscores and
+     * dashes are kept, so regular player names are stored as they are; any other
+     * character, including dots and path separators, is written as % and its four
+     * digit hex code.
+     *
+     * @param name the lower-cased user name
+     * @return the file name, without extension
+     */
+    private static String encodeFileName(String name) {
+        StringBuilder fileName = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+            if (safe && fileName == null) {
+                continue;
+            }
+            if (fileName == null) {
+                fileName = new StringBuilder(name.length() + 8).append(name, 0, i);
+            }
+            if (safe) {
+                fileName.append(c);
+            } else {
+                fileName.append('%').append(String.format("%04x", (int) c));
+            }
+        }
+        return fileName != null ? fileName.toString() : name;
+    }
+
+    /**
+     * Decodes a file name written by {@link #encodeFileName(String)}.
+     * Malformed escapes are kept as they are.
+     *
+     * @param fileName the file name, without extension
+     * @return the user name
+     */
+    private static String decodeFileName(String fileName) {
+        if (fileName.indexOf('%') < 0) {
+            return fileName;
+        }
+
+        StringBuilder name = new StringBuilder(fileName.length());
+        for (int i = 0; i < fileName.length(); i++) {
+            char c = fileName.charAt(i);
+            if (c == '%' && i + 5 <= fileName.length()) {
+                try {
+                    name.append((char) Integer.parseInt(fileName.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    continue;
+                } catch (NumberFormatException ignored) {
+                    // Not an escape
+                }
+            }
+            name.append(c);
+        }
+        return name.toString();
+    }
+}
@@ -6,11 +6,13 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
 import org.frizzlenpop.frizzlenRanks.model.User;
+import org.frizzlenpop.frizzlenRanks.model.UserDisplay;
 import org.frizzlenpop.frizzlenRanks.model.World;
 
 /**
@@ -30,6 +32,18 @@ public class PlayerListener implements Listener {
         staticPlugin = plugin;
     }
     
+    /**
+     * Loads a joining player's data off the main thread before they join.
+     * 
+     * @param event the event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            plugin.getDataManager().preloadUser(event.getName());
+        }
+    }
+    
     /**
      * Handles player join events.
      * 
@@ -129,12 +143,10 @@ public class PlayerListener implements Listener {
         Player player = event.getPlayer();
         String playerWorld = player.getWorld().getName();
         
-        // Make sure we're using the player's current world
-        plugin.getDataManager().setSelectedWorld(playerWorld);
-        
-        // Get prefix and suffix
-        String prefix = plugin.getChatHook().getPlayerPrefix(playerWorld, player);
-        String suffix = plugin.getChatHook().getPlayerSuffix(playerWorld, player);
+        // Chat runs async, so only read what is already loaded; the player was loaded on join
+        UserDisplay display = plugin.getChatHook().getLoadedPlayerDisplay(playerWorld, player.getName());
+        String prefix = display.getColoredPrefix();
+        String suffix = display.getColoredSuffix();
         
         /* Debug information - Disabled as requested
         if (player.hasPermission("frizzlenranks.admin")) {
@@ -150,34 +162,13 @@ public class PlayerListener implements Listener {
         }
         */
         
-        // Make sure prefix and suffix are never null
-        if (prefix == null) prefix = "";
-        if (suffix == null) suffix = "";
-        
-        // Translate color codes in prefix and suffix
-        prefix = prefix.replace("&", "§");
-        suffix = suffix.replace("&", "§");
-        
-        // Get the chat format from config
-        String format = plugin.getConfigManager().getChatFormat();
-        
-        // Replace placeholders
-        format = format.replace("{prefix}", prefix);
-        format = format.replace("{suffix}", suffix);
-        format = format.replace("{world}", playerWorld);
-        format = format.replace("{name}", player.getName());
-        format = format.replace("{message}", "%2$s"); // Use %2$s for the message to preserve formatting
-        
-        // Apply color codes to the entire format
-        format = format.replace("&", "§");
-        
-        // Set the new format
-        event.setFormat(format);
+        // Fill in the chat format that was parsed when the config was loaded
+        event.setFormat(plugin.getConfigManager().getChatTemplate().render(prefix, suffix, playerWorld, player.getName()));
     }
     
     /**
      * Ensures the player's tab sorting without changing display names.
-     * This method only focuses on maintaining the team assignments for proper sorting.
+     * The player is only moved if their rank or prefix changed or another plugin moved them.
      * 
      * @param player the player to ensure sorting for
      */
@@ -185,125 +176,7 @@ public class PlayerListener implements Listener {
         if (player == null || !player.isOnline()) return;
         
         try {
-            // Get the player's world
-            String worldName = player.getWorld().getName();
-            
-            // Get the player's groups and find the highest priority group
-            org.frizzlenpop.frizzlenRanks.model.World pluginWorld = plugin.getDataManager().getWorld(worldName);
-            User user = pluginWorld.getUser(player.getName());
-            
-            // Initialize max priority to lowest possible value
-            int maxPriority = Integer.MIN_VALUE;
-            String highestGroup = "default"; // Default fallback
-            
-            // Find the highest priority group
-            for (String groupName : user.getGroups()) {
-                if (pluginWorld.hasGroup(groupName)) {
-                    org.frizzlenpop.frizzlenRanks.model.Group group = pluginWorld.getGroup(groupName);
-                    int priority = group.getPriority();
-                    
-                    if (priority > maxPriority) {
-                        maxPriority = priority;
-                        highestGroup = groupName;
-                    }
-                }
-            }
-            
-            // Format the priority as a string with leading zeros for correct sorting
-            // Higher priority numbers will be at the top of the tablist
-            String formattedPriority = String.format("%04d", 9999 - maxPriority); // Invert for descending order
-            
-            // Get prefix and suffix (we'll need these for the team)
-            String prefix = plugin.getChatHook().getPlayerPrefix(worldName, player);
-            String suffix = plugin.getChatHook().getPlayerSuffix(worldName, player);
-            
-            // Make sure prefix and suffix are never null
-            if (prefix == null) prefix = "";
-            if (suffix == null) suffix = "";
-            
-            // Translate color codes
-            prefix = prefix.replace("&", "§");
-            suffix = suffix.replace("&", "§");
-            
-            // Get or create a team for this player based on their priority
-            org.bukkit.scoreboard.Scoreboard scoreboard = Bukkit.getScoreboardManager().getMainScoreboard();
-            String teamName = "FR_" + formattedPriority + "_" + highestGroup; // Add prefix to avoid conflicts
-            
-            // Ensure name is not longer than 16 characters (Minecraft limit)
-            if (teamName.length() > 16) {
-                teamName = teamName.substring(0, 16);
-            }
-            
-            // Check if player is already in the correct team
-            boolean isInCorrectTeam = false;
-            for (org.bukkit.scoreboard.Team team : scoreboard.getTeams()) {
-                if (team.getName().equals(teamName) && team.hasEntry(player.getName())) {
-                    isInCorrectTeam = true;
-                    break;
-                }
-            }
-            
-            // If already in correct team, no need to change anything
-            if (isInCorrectTeam) {
-                return;
-            }
-            
-            // Remove player from any existing teams
-            for (org.bukkit.scoreboard.Team team : scoreboard.getTeams()) {
-                if (team.hasEntry(player.getName())) {
-                    team.removeEntry(player.getName());
-                }
-            }
-            
-            // Get or create the team
-            org.bukkit.scoreboard.Team team = scoreboard.getTeam(teamName);
-            if (team == null) {
-                // Try to unregister any existing team with the same name (just to be safe)
-                try {
-                    org.bukkit.scoreboard.Team existingTeam = scoreboard.getTeam(teamName);
-                    if (existingTeam != null) {
-                        existingTeam.unregister();
-                    }
-                } catch (Exception e) {
-                    // Ignore - just being cautious
-                }
-                
-                // Create new team
-                team = scoreboard.registerNewTeam(teamName);
-                team.setPrefix(prefix);
-                team.setSuffix(suffix);
-                
-                // Set team options
-                try {
-                    // Use reflection to check if these methods exist (1.12+ feature)
-                    team.getClass().getMethod("setColor", org.bukkit.ChatColor.class);
-                    // If we get here, the methods exist
-                    try {
-                        // Get the first color code from the prefix if available
-                        org.bukkit.ChatColor color = org.bukkit.ChatColor.WHITE; // Default
-                        if (!prefix.isEmpty()) {
-                            char colorChar = prefix.charAt(1); // Get color after §
-                            org.bukkit.ChatColor possibleColor = org.bukkit.ChatColor.getByChar(colorChar);
-                            if (possibleColor != null && possibleColor.isColor()) {
-                                color = possibleColor;
-                            }
-                        }
-                        team.setColor(color);
-                    } catch (Exception e) {
-                        // Ignore reflection errors
-                    }
-                } catch (NoSuchMethodException e) {
-                    // Method doesn't exist in this version, ignore
-                }
-            } else {
-                // Update team settings in case they changed
-                team.setPrefix(prefix);
-                team.setSuffix(suffix);
-            }
-            
-            // Add the player to the team
-            team.addEntry(player.getName());
-            
+            plugin.getTeamManager().update(player);
         } catch (Exception e) {
             // Catch any errors to prevent tab display issues from breaking the plugin
             plugin.getLogger().warning("Error ensuring tab sorting for " + player.getName() + ": " + e.getMessage());
@@ -320,31 +193,7 @@ public class PlayerListener implements Listener {
         if (player == null) return;
         
         try {
-            // Get the player's world
-            String worldName = player.getWorld().getName();
-            
-            // Get prefix and suffix
-            String prefix = plugin.getChatHook().getPlayerPrefix(worldName, player);
-            String suffix = plugin.getChatHook().getPlayerSuffix(worldName, player);
-            
-            // Make sure prefix and suffix are never null
-            if (prefix == null) prefix = "";
-            if (suffix == null) suffix = "";
-            
-            // Translate color codes
-            prefix = prefix.replace("&", "§");
-            suffix = suffix.replace("&", "§");
-            
-            // Create the formatted display name for tab
-            String displayName = prefix + player.getName() + suffix;
-            
-            // Set the player's tab display name
-            player.setPlayerListName(displayName);
-            player.setDisplayName(displayName);
-            
-            // Update the tab sorting (now delegated to separate method)
-            ensurePlayerTabSorting(player);
-            
+            plugin.getTeamManager().updateDisplay(player);
         } catch (Exception e) {
             // Catch any errors to prevent tab display issues from breaking the plugin
             plugin.getLogger().warning("Error updating tab display for " + player.getName() + ": " + e.getMessage());
@@ -366,18 +215,19 @@ public class PlayerListener implements Listener {
         World world = plugin.getDataManager().getWorld(worldName);
         User user = world.getUser(playerName);
         
-        // Always save on player quit, regardless of auto-save setting
-        plugin.getDataManager().saveWorld(world);
-        
         // Sync user across worlds
         plugin.getDataManager().syncUserAcrossWorlds(world, playerName);
         
-        // Also save all worlds to be extra safe
+        // Always save on player quit, regardless of auto-save setting
+        // This only queues a background write of whatever changed
         plugin.getDataManager().saveAll();
         
         // Clean up permission attachments to prevent memory leaks
         plugin.cleanupPlayerPermissions(playerName);
         
+        // Leave the tab sorting team, removing it once it is empty
+        plugin.getTeamManager().remove(player);
+        
         plugin.getLogger().info("Saved data for player " + playerName + " on disconnect");
     }
     
@@ -395,6 +245,9 @@ public class PlayerListener implements Listener {
         // Log world change for debugging
         plugin.getLogger().info("Player " + playerName + " changed worlds to: " + newWorldName);
         
+        // Load the player into the new world now, since async chat only reads loaded users
+        plugin.getDataManager().getWorld(newWorldName).getUser(playerName);
+        
         // Update the player's tab display for the new world
         Bukkit.getScheduler().runTaskLater(plugin, () -> {
             plugin.resetPlayerPermissionCache(playerName);
@@ -0,0 +1,45 @@
+package org.frizzlenpop.frizzlenRanks.listeners;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
+import org.bukkit.event.server.PluginEnableEvent;
+import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
+
+/**
+ * Listens for other plugins being enabled or disabled, which changes the
+ * permissions registered on the server.
+ */
+public class PluginListener implements Listener {
+    private final FrizzlenRanks plugin;
+    
+    /**
+     * Creates a new PluginListener.
+     * 
+     * @param plugin the plugin instance
+     */
+    public PluginListener(FrizzlenRanks plugin) {
+        this.plugin = plugin;
+    }
+    
+    /**
+     * Forgets the registered permissions once a plugin has registered its own.
+     * 
+     * @param event the event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginEnable(PluginEnableEvent event) {
+        plugin.clearRegisteredPermissionNames();
+    }
+    
+    /**
+     * Forgets the registered permissions once a plugin's were removed.
+     * 
+     * @param event the event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginDisable(PluginDisableEvent event) {
+        plugin.clearRegisteredPermissionNames();
+    }
+}
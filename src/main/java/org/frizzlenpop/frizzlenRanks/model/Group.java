@@ -1,16 +1,28 @@
 package org.frizzlenpop.frizzlenRanks.model;
 
+import org.frizzlenpop.frizzlenRanks.permission.PermissionSet;
+import org.frizzlenpop.frizzlenRanks.permission.PermissionTree;
+
 import java.util.*;
 
 /**
  * Represents a permission group in the permissions system.
+ * Changes are made one at a time under the group's lock and replace the metadata and
+ * inheritance with new immutable copies, so readers on any thread need no lock.
  */
 public class Group {
     private final String name;
-    private final Map<String, String> meta;
-    private final Set<String> permissions;
-    private final Set<String> inheritance;
-    private int priority;
+    private final PermissionSet permissions;
+    private volatile Map<String, String> meta;
+    private volatile Set<String> inheritance;
+    private volatile int priority;
+    
+    // The world this group belongs to, notified when permissions or inheritance change
+    private World world;
+    
+    // Bumped whenever the permissions change; the compiled tree is rebuilt when it moves
+    private volatile int generation;
+    private volatile CompiledTree permissionTree;
     
     /**
      * Creates a new Group with the given name.
@@ -19,12 +31,54 @@ public class Group {
      */
     public Group(String name) {
         this.name = name.toLowerCase();
-        this.meta = new HashMap<>();
-        this.permissions = new HashSet<>();
-        this.inheritance = new HashSet<>();
+        this.permissions = new PermissionSet();
+        this.meta = Collections.emptyMap();
+        this.inheritance = Collections.emptySet();
         this.priority = 0;
     }
     
+    /**
+     * Sets the world this group belongs to.
+     * 
+     * @param world the owning world
+     */
+    void setWorld(World world) {
+        this.world = world;
+    }
+    
+    /**
+     * Notifies the owning world that this group's permissions or inheritance changed.
+     */
+    private void changed() {
+        generation++;
+        if (world != null) {
+            world.groupChanged(name);
+        }
+    }
+    
+    /**
+     * Notifies the owning world of a change that does not affect permissions, such as metadata.
+     */
+    private void modified() {
+        if (world != null) {
+            world.groupModified(name);
+        }
+    }
+    
+    /**
+     * Records a change to this group in the owning world's mutation log.
+     * 
+     * @param type the kind of change
+     * @param key the permission, group or meta key, or null
+     * @param value the new value, or null
+     * @param number the new priority, or 0
+     */
+    private void record(MutationLog.Type type, String key, String value, long number) {
+        if (world != null) {
+            world.record(type, name, key, value, number);
+        }
+    }
+    
     /**
      * Gets the name of the group.
      * 
@@ -40,7 +94,7 @@ public class Group {
      * @return a map of metadata key-value pairs
      */
     public Map<String, String> getMeta() {
-        return Collections.unmodifiableMap(meta);
+        return meta;
     }
     
     /**
@@ -49,12 +103,16 @@ public class Group {
      * @param key the metadata key
      * @param value the metadata value
      */
-    public void setMeta(String key, String value) {
+    public synchronized void setMeta(String key, String value) {
+        Map<String, String> updated = new HashMap<>(meta);
         if (value == null || value.isEmpty()) {
-            meta.remove(key);
+            updated.remove(key);
         } else {
-            meta.put(key, value);
+            updated.put(key, value);
         }
+        meta = Collections.unmodifiableMap(updated);
+        record(MutationLog.Type.GROUP_SET_META, key, value, 0);
+        modified();
     }
     
     /**
@@ -78,11 +136,14 @@ public class Group {
     
     /**
      * Adds a permission to the group.
+     * Adding a node replaces its negated form and vice versa, so each node has one value.
      * 
      * @param permission the permission to add
      */
-    public void addPermission(String permission) {
-        permissions.add(permission.toLowerCase());
+    public synchronized void addPermission(String permission) {
+        permissions.add(permission);
+        record(MutationLog.Type.GROUP_ADD_PERMISSION, permission, null, 0);
+        changed();
     }
     
     /**
@@ -90,18 +151,37 @@ public class Group {
      * 
      * @param permission the permission to remove
      */
-    public void removePermission(String permission) {
-        permissions.remove(permission.toLowerCase());
+    public synchronized void removePermission(String permission) {
+        permissions.remove(permission);
+        record(MutationLog.Type.GROUP_REMOVE_PERMISSION, permission, null, 0);
+        changed();
     }
     
     /**
      * Checks if the group has the specified permission.
+     * Wildcards such as "*" and "node.*" and negated nodes are honoured.
      * 
      * @param permission the permission to check
      * @return true if the group has the permission
      */
     public boolean hasPermission(String permission) {
-        return permissions.contains(permission.toLowerCase());
+        return getPermissionTree().hasPermission(permission);
+    }
+    
+    /**
+     * Gets the compiled permission tree of this group's own permissions.
+     * 
+     * @return the compiled permission tree
+     */
+    public PermissionTree getPermissionTree() {
+        CompiledTree compiled = permissionTree;
+        int current = generation;
+        if (compiled == null || compiled.generation != current) {
+            // A tree compiled while the permissions change again is tagged with the older generation and rebuilt
+            compiled = new CompiledTree(current, PermissionTree.compile(permissions));
+            permissionTree = compiled;
+        }
+        return compiled.tree;
     }
     
     /**
@@ -110,18 +190,29 @@ public class Group {
      * @return a set of group names
      */
     public Set<String> getInheritance() {
-        return Collections.unmodifiableSet(inheritance);
+        return inheritance;
     }
     
     /**
      * Adds a group to inherit from.
+     * Refused if that group already inherits from this one, directly or indirectly,
+     * or is this group itself, since the inheritance would become circular.
      * 
      * @param group the group to inherit from
+     * @return true if the group was added, false if it would create a cycle
      */
-    public void addInheritance(String group) {
-        if (!group.equalsIgnoreCase(name)) { // Prevent circular inheritance
-            inheritance.add(group.toLowerCase());
+    public synchronized boolean addInheritance(String group) {
+        String lowerGroup = group.toLowerCase();
+        if (lowerGroup.equals(name) || (world != null && !world.inheritanceAdded(this, lowerGroup))) {
+            return false;
         }
+        
+        Set<String> updated = new HashSet<>(inheritance);
+        updated.add(lowerGroup);
+        inheritance = Collections.unmodifiableSet(updated);
+        record(MutationLog.Type.GROUP_ADD_INHERITANCE, group, null, 0);
+        changed();
+        return true;
     }
     
     /**
@@ -129,8 +220,15 @@ public class Group {
      * 
      * @param group the group to remove from inheritance
      */
-    public void removeInheritance(String group) {
-        inheritance.remove(group.toLowerCase());
+    public synchronized void removeInheritance(String group) {
+        Set<String> updated = new HashSet<>(inheritance);
+        updated.remove(group.toLowerCase());
+        inheritance = Collections.unmodifiableSet(updated);
+        if (world != null) {
+            world.inheritanceRemoved(this, group.toLowerCase());
+        }
+        record(MutationLog.Type.GROUP_REMOVE_INHERITANCE, group, null, 0);
+        changed();
     }
     
     /**
@@ -158,7 +256,22 @@ public class Group {
      * 
      * @param priority the new priority
      */
-    public void setPriority(int priority) {
+    public synchronized void setPriority(int priority) {
         this.priority = priority;
+        record(MutationLog.Type.GROUP_SET_PRIORITY, null, null, priority);
+        changed(); // Priority decides which group wins a conflicting node
+    }
+    
+    /**
+     * A compiled permission tree and the generation of the permissions it was compiled from.
+     */
+    private static final class CompiledTree {
+        private final int generation;
+        private final PermissionTree tree;
+        
+        private CompiledTree(int generation, PermissionTree tree) {
+            this.generation = generation;
+            this.tree = tree;
+        }
     }
 } 
\ No newline at end of file
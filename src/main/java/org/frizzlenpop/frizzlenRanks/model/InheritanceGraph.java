@@ -0,0 +1,239 @@
+package org.frizzlenpop.frizzlenRanks.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The inheritance between the groups of a world, with edges stored in both directions
+ * and the transitive ancestors and descendants of every group kept up to date.
+ * An edge that would make a group inherit from itself is refused when it is added,
+ * so the graph never contains a cycle and readers never need to guard against one.
+ *
+ * <p>Edges are changed under the owning world's lock. Only the groups whose closure
+ * an edge touches are recomputed, and each closure is published as an immutable
+ * copy, so readers on any thread need no lock.</p>
+ */
+final class InheritanceGraph {
+    // Lower-cased group names to the groups they inherit from, and the reverse
+    private final Map<String, Set<String>> parents;
+    private final Map<String, Set<String>> children;
+
+    // Every group each group inherits from, in the order their permissions are applied
+    private final Map<String, List<String>> ancestors;
+
+    // Every group inheriting from each group, directly or indirectly
+    private final Map<String, Set<String>> descendants;
+
+    /**
+     * Creates an empty graph.
+     */
+    InheritanceGraph() {
+        this.parents = new HashMap<>();
+        this.children = new HashMap<>();
+        this.ancestors = new ConcurrentHashMap<>();
+        this.descendants = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets every group a group inherits from, directly or indirectly. Each parent comes
+     * right after the group that inherits from it, and a group reached twice is only
+     * listed the first time.
+     *
+     * @param groupName the lower-cased name of the group
+     * @return the lower-cased names of its ancestors
+     */
+    List<String> getAncestors(String groupName) {
+        List<String> groupAncestors = ancestors.get(groupName);
+        return groupAncestors != null ? groupAncestors : Collections.emptyList();
+    }
+
+    /**
+     * Gets every group that inherits from a group, directly or indirectly.
+     *
+     * @param groupName the lower-cased name of the group
+     * @return the lower-cased names of its descendants
+     */
+    Set<String> getDescendants(String groupName) {
+        Set<String> groupDescendants = descendants.get(groupName);
+        return groupDescendants != null ? groupDescendants : Collections.emptySet();
+    }
+
+    /**
+     * Adds an edge, unless it would close a cycle.
+     *
+     * @param groupName the lower-cased name of the inheriting group
+     * @param parentName the lower-cased name of the group it inherits from
+     * @return false if the parent already inherits from the group, or is the group itself
+     */
+    boolean add(String groupName, String parentName) {
+        if (groupName.equals(parentName) || getDescendants(groupName).contains(parentName)) {
+            return false;
+        }
+
+        if (parents.computeIfAbsent(groupName, key -> new LinkedHashSet<>()).add(parentName)) {
+            children.computeIfAbsent(parentName, key -> new HashSet<>()).add(groupName);
+            update(groupName, Collections.singletonList(parentName));
+        }
+        return true;
+    }
+
+    /**
+     * Removes an edge.
+     *
+     * @param groupName the lower-cased name of the inheriting group
+     * @param parentName the lower-cased name of the group it inherited from
+     */
+    void remove(String groupName, String parentName) {
+        if (unlink(groupName, parentName)) {
+            update(groupName, Collections.singletonList(parentName));
+        }
+    }
+
+    /**
+     * Removes every edge from a group to its parents, used when the group is removed.
+     * Groups that inherit from it keep their edges, as they still name it.
+     *
+     * @param groupName the lower-cased name of the group
+     */
+    void removeParents(String groupName) {
+        Set<String> groupParents = parents.get(groupName);
+        if (groupParents == null) {
+            return;
+        }
+
+        List<String> former = new ArrayList<>(groupParents);
+        for (String parentName : former) {
+            unlink(groupName, parentName);
+        }
+        update(groupName, former);
+    }
+
+    /**
+     * Removes all edges.
+     */
+    void clear() {
+        parents.clear();
+        children.clear();
+        ancestors.clear();
+        descendants.clear();
+    }
+
+    /**
+     * Removes an edge from both directions without updating the closures.
+     *
+     * @param groupName the lower-cased name of the inheriting group
+     * @param parentName the lower-cased name of the group it inherited from
+     * @return true if the edge existed
+     */
+    private boolean unlink(String groupName, String parentName) {
+        Set<String> groupParents = parents.get(groupName);
+        if (groupParents == null || !groupParents.remove(parentName)) {
+            return false;
+        }
+        if (groupParents.isEmpty()) {
+            parents.remove(groupName);
+        }
+
+        Set<String> parentChildren = children.get(parentName);
+        if (parentChildren != null && parentChildren.remove(groupName) && parentChildren.isEmpty()) {
+            children.remove(parentName);
+        }
+        return true;
+    }
+
+    /**
+     * Recomputes the closures changed by editing the parents of a group: the ancestors
+     * of the group and everything below it, and the descendants of the edited parents
+     * and everything above them. No other group can reach across the edited edges.
+     *
+     * @param groupName the lower-cased name of the group whose parents changed
+     * @param parentNames the lower-cased names of the parents added or removed
+     */
+    private void update(String groupName, Collection<String> parentNames) {
+        publishAncestors(groupName);
+        for (String descendant : getDescendants(groupName)) {
+            publishAncestors(descendant);
+        }
+
+        Set<String> above = new HashSet<>();
+        for (String parentName : parentNames) {
+            above.add(parentName);
+            above.addAll(getAncestors(parentName));
+        }
+        for (String ancestor : above) {
+            publishDescendants(ancestor);
+        }
+    }
+
+    /**
+     * Walks the parents of a group depth first and publishes the result.
+     *
+     * @param groupName the lower-cased name of the group
+     */
+    private void publishAncestors(String groupName) {
+        List<String> found = new ArrayList<>();
+        collectAncestors(groupName, new HashSet<>(), found);
+        if (found.isEmpty()) {
+            ancestors.remove(groupName);
+        } else {
+            ancestors.put(groupName, Collections.unmodifiableList(found));
+        }
+    }
+
+    /**
+     * Adds the parents of a group and then their own parents, skipping groups already found.
+     *
+     * @param groupName the lower-cased name of the group
+     * @param seen the groups already found
+     * @param found the ancestors in the order they were found
+     */
+    private void collectAncestors(String groupName, Set<String> seen, List<String> found) {
+        Set<String> groupParents = parents.get(groupName);
+        if (groupParents == null) {
+            return;
+        }
+
+        for (String parentName : groupParents) {
+            if (seen.add(parentName)) {
+                found.add(parentName);
+                collectAncestors(parentName, seen, found);
+            }
+        }
+    }
+
+    /**
+     * Walks the children of a group and publishes the result.
+     *
+     * @param groupName the lower-cased name of the group
+     */
+    private void publishDescendants(String groupName) {
+        Set<String> found = new HashSet<>();
+        List<String> queue = new ArrayList<>();
+        queue.add(groupName);
+        for (int i = 0; i < queue.size(); i++) {
+            Set<String> groupChildren = children.get(queue.get(i));
+            if (groupChildren == null) {
+                continue;
+            }
+            for (String child : groupChildren) {
+                if (found.add(child)) {
+                    queue.add(child);
+                }
+            }
+        }
+
+        if (found.isEmpty()) {
+            descendants.remove(groupName);
+        } else {
+            descendants.put(groupName, Collections.unmodifiableSet(found));
+        }
+    }
+}
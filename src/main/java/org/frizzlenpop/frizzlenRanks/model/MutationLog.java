@@ -0,0 +1,52 @@
+package org.frizzlenpop.frizzlenRanks.model;
+
+/**
+ * Receives every change made to the users and groups of a world as it happens,
+ * so the change can be made durable before the changed data itself is saved.
+ * Each change sets a value rather than adjusting it, so replaying a change that
+ * was already saved leaves the data as it was.
+ */
+public interface MutationLog {
+
+    /**
+     * The kinds of changes that are recorded.
+     */
+    enum Type {
+        USER_ADD_PERMISSION,
+        USER_REMOVE_PERMISSION,
+        USER_ADD_TEMPORARY_PERMISSION,
+        USER_REMOVE_TEMPORARY_PERMISSION,
+        USER_ADD_GROUP,
+        USER_REMOVE_GROUP,
+        USER_ADD_TEMPORARY_GROUP,
+        USER_REMOVE_TEMPORARY_GROUP,
+        USER_SET_GROUPS,
+        USER_SET_META,
+        USER_CLEAR_PERMISSIONS,
+        USER_CLEAR_GROUPS,
+        USER_CLEAR_META,
+        USER_REMOVE,
+        GROUP_CREATE,
+        GROUP_ADD_PERMISSION,
+        GROUP_REMOVE_PERMISSION,
+        GROUP_ADD_INHERITANCE,
+        GROUP_REMOVE_INHERITANCE,
+        GROUP_SET_PRIORITY,
+        GROUP_SET_META,
+        GROUP_REMOVE,
+        TRACK_CREATE,
+        TRACK_REMOVE
+    }
+
+    /**
+     * Records a change.
+     *
+     * @param worldName the lower-cased name of the world, or an empty string for tracks
+     * @param type the kind of change
+     * @param owner the lower-cased name of the changed user, group or track
+     * @param key the permission, group or meta key the change applies to, or null
+     * @param value the new meta value or list of groups, or null
+     * @param number the expiration time or priority, or 0
+     */
+    void record(String worldName, Type type, String owner, String key, String value, long number);
+}
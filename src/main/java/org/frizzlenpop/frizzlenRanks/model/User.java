@@ -1,20 +1,39 @@
 package org.frizzlenpop.frizzlenRanks.model;
 
+import org.frizzlenpop.frizzlenRanks.permission.PermissionNodes;
+import org.frizzlenpop.frizzlenRanks.permission.PermissionSet;
+import org.frizzlenpop.frizzlenRanks.permission.PermissionTree;
+
 import java.util.*;
 
 /**
  * Represents a user in the system.
+ * Changes are made one at a time under the user's lock, and each one publishes a new
+ * immutable {@link Views} snapshot. Readers on any thread only see whole snapshots and
+ * never take the lock.
  */
 public class User {
     private final String name;
-    private final List<String> groups;
-    private final List<String> permissions;
+    
+    // Only touched by changes, under the user's lock
+    private final Set<String> groups;
+    private final PermissionSet permissions;
     private final Map<String, String> meta;
     
     // Maps for temporary permissions and groups with expiration timestamps
     private final Map<String, Long> temporaryPermissions;
     private final Map<String, Long> temporaryGroups;
     
+    // Bumped by every change; caches built from this user are only kept if it did not move
+    private volatile int generation;
+    private volatile Views views;
+    
+    // The world this user belongs to, notified when permissions or groups change
+    private World world;
+    
+    // When the user was last looked up, used to unload idle offline users
+    private volatile long lastUsed;
+    
     /**
      * Creates a new user.
      * 
@@ -22,11 +41,87 @@ public class User {
      */
     public User(String name) {
         this.name = name;
-        this.groups = new ArrayList<>();
-        this.permissions = new ArrayList<>();
+        this.groups = new LinkedHashSet<>();
+        this.permissions = new PermissionSet();
         this.meta = new HashMap<>();
         this.temporaryPermissions = new HashMap<>();
         this.temporaryGroups = new HashMap<>();
+        this.views = new Views(this);
+    }
+    
+    /**
+     * Sets the world this user belongs to.
+     * 
+     * @param world the owning world
+     */
+    void setWorld(World world) {
+        this.world = world;
+    }
+    
+    /**
+     * Records that the user was just looked up.
+     */
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+    
+    /**
+     * Gets when the user was last looked up.
+     * 
+     * @return the time in milliseconds
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+    
+    /**
+     * Gets the generation of this user, which moves with every change.
+     * 
+     * @return the current generation
+     */
+    public int getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Publishes the changed data and notifies the owning world that this user's
+     * permissions or groups changed.
+     */
+    private void changed() {
+        List<String> before = views.groups;
+        publish();
+        if (world != null) {
+            String lowerName = name.toLowerCase();
+            if (!before.equals(views.groups)) {
+                world.membershipChanged(this, lowerName, before, views.groups);
+            }
+            world.userChanged(lowerName);
+        }
+    }
+    
+    /**
+     * Publishes the changed data and notifies the owning world of a change that does
+     * not affect permissions, such as metadata.
+     */
+    private void modified() {
+        publish();
+        if (world != null) {
+            world.userModified(name.toLowerCase());
+        }
+    }
+    
+    /**
+     * Records a change to this user in the owning world's mutation log.
+     * 
+     * @param type the kind of change
+     * @param key the permission, group or meta key, or null
+     * @param value the new value, or null
+     * @param number the expiration time, or 0
+     */
+    private void record(MutationLog.Type type, String key, String value, long number) {
+        if (world != null) {
+            world.record(type, name.toLowerCase(), key, value, number);
+        }
     }
     
     /**
@@ -44,17 +139,7 @@ public class User {
      * @return the groups
      */
     public List<String> getGroups() {
-        List<String> effectiveGroups = new ArrayList<>(groups);
-        
-        // Add active temporary groups
-        long currentTime = System.currentTimeMillis();
-        for (Map.Entry<String, Long> entry : temporaryGroups.entrySet()) {
-            if (entry.getValue() > currentTime && !effectiveGroups.contains(entry.getKey())) {
-                effectiveGroups.add(entry.getKey());
-            }
-        }
-        
-        return Collections.unmodifiableList(effectiveGroups);
+        return getViews().groups;
     }
     
     /**
@@ -63,7 +148,48 @@ public class User {
      * @return the permanent groups
      */
     public List<String> getPermanentGroups() {
-        return Collections.unmodifiableList(groups);
+        return getViews().permanentGroups;
+    }
+    
+    /**
+     * Builds and publishes the views of the current data, then bumps the generation.
+     * Called by every change while it still holds the lock.
+     */
+    private void publish() {
+        views = new Views(this);
+        generation++;
+    }
+    
+    /**
+     * Gets the published views. A temporary entry that lapsed since they were published
+     * is left out of the returned views until the expiry scheduler removes it; the
+     * filtered views are built once per lapse and kept with the published ones.
+     * 
+     * @return the current views
+     */
+    private Views getViews() {
+        Views current = views;
+        long now = System.currentTimeMillis();
+        if (now < current.expiresAt) {
+            return current;
+        }
+        
+        Views filtered = current.filtered;
+        if (filtered == null || now >= filtered.expiresAt) {
+            filtered = current.withoutExpired(now);
+            current.filtered = filtered;
+        }
+        return filtered;
+    }
+    
+    /**
+     * Gets the groups as last published, including temporary groups that lapsed since.
+     * These are the groups the world's member index holds the user under.
+     * 
+     * @return the published groups
+     */
+    List<String> getPublishedGroups() {
+        return views.groups;
     }
     
     /**
@@ -72,8 +198,7 @@ public class User {
      * @return the temporary groups map
      */
     public Map<String, Long> getTemporaryGroups() {
-        cleanExpiredGroupEntries();
-        return Collections.unmodifiableMap(temporaryGroups);
+        return getViews().temporaryGroups;
     }
     
     /**
@@ -81,10 +206,10 @@ public class User {
      * 
      * @param group the group
      */
-    public void addGroup(String group) {
-        if (!groups.contains(group)) {
-            groups.add(group);
-        }
+    public synchronized void addGroup(String group) {
+        groups.add(group);
+        record(MutationLog.Type.USER_ADD_GROUP, group, null, 0);
+        changed();
     }
     
     /**
@@ -93,7 +218,7 @@ public class User {
      * @param group the group
      * @param expirationTime the expiration timestamp in milliseconds
      */
-    public void addTemporaryGroup(String group, long expirationTime) {
+    public synchronized void addTemporaryGroup(String group, long expirationTime) {
         // If the group is already permanent, don't add a temporary entry
         if (groups.contains(group)) {
             return;
@@ -101,6 +226,8 @@ public class User {
         
         // Add or update the temporary group
         temporaryGroups.put(group, expirationTime);
+        record(MutationLog.Type.USER_ADD_TEMPORARY_GROUP, group, null, expirationTime);
+        changed();
     }
     
     /**
@@ -108,9 +235,11 @@ public class User {
      * 
      * @param group the group
      */
-    public void removeGroup(String group) {
+    public synchronized void removeGroup(String group) {
         groups.remove(group);
         temporaryGroups.remove(group); // Also remove any temporary entry
+        record(MutationLog.Type.USER_REMOVE_GROUP, group, null, 0);
+        changed();
     }
     
     /**
@@ -118,8 +247,10 @@ public class User {
      * 
      * @param group the group to remove
      */
-    public void removeTemporaryGroup(String group) {
+    public synchronized void removeTemporaryGroup(String group) {
         temporaryGroups.remove(group);
+        record(MutationLog.Type.USER_REMOVE_TEMPORARY_GROUP, group, null, 0);
+        changed();
     }
     
     /**
@@ -127,9 +258,11 @@ public class User {
      * 
      * @param groups the groups
      */
-    public void setGroups(List<String> groups) {
+    public synchronized void setGroups(List<String> groups) {
         this.groups.clear();
         this.groups.addAll(groups);
+        record(MutationLog.Type.USER_SET_GROUPS, null, String.join(",", groups), 0);
+        changed();
     }
     
     /**
@@ -138,17 +271,7 @@ public class User {
      * @return the permissions
      */
     public List<String> getPermissions() {
-        List<String> effectivePermissions = new ArrayList<>(permissions);
-        
-        // Add active temporary permissions
-        long currentTime = System.currentTimeMillis();
-        for (Map.Entry<String, Long> entry : temporaryPermissions.entrySet()) {
-            if (entry.getValue() > currentTime && !effectivePermissions.contains(entry.getKey())) {
-                effectivePermissions.add(entry.getKey());
-            }
-        }
-        
-        return Collections.unmodifiableList(effectivePermissions);
+        return getViews().permissions;
     }
     
     /**
@@ -157,7 +280,7 @@ public class User {
      * @return the permanent permissions
      */
     public List<String> getPermanentPermissions() {
-        return Collections.unmodifiableList(permissions);
+        return getViews().permanentPermissions;
     }
     
     /**
@@ -166,19 +289,39 @@ public class User {
      * @return the temporary permissions map
      */
     public Map<String, Long> getTemporaryPermissions() {
-        cleanExpiredPermissionEntries();
-        return Collections.unmodifiableMap(temporaryPermissions);
+        return getViews().temporaryPermissions;
     }
     
     /**
      * Adds a permission to the user.
+     * Adding a node replaces its negated form and vice versa, so each node has one value.
      * 
      * @param permission the permission
      */
-    public void addPermission(String permission) {
-        if (!permissions.contains(permission)) {
-            permissions.add(permission);
+    public synchronized void addPermission(String permission) {
+        permissions.add(permission);
+        record(MutationLog.Type.USER_ADD_PERMISSION, permission, null, 0);
+        changed();
+    }
+    
+    /**
+     * Gets when the first of the user's temporary permissions and groups expires.
+     * 
+     * @return the earliest expiration timestamp, or 0 if the user has no temporary entries
+     */
+    public synchronized long getNextExpiry() {
+        long next = 0;
+        for (long expiry : temporaryPermissions.values()) {
+            if (next == 0 || expiry < next) {
+                next = expiry;
+            }
+        }
+        for (long expiry : temporaryGroups.values()) {
+            if (next == 0 || expiry < next) {
+                next = expiry;
+            }
         }
+        return next;
     }
     
     /**
@@ -187,14 +330,18 @@ public class User {
      * @param permission the permission
      * @param expirationTime the expiration timestamp in milliseconds
      */
-    public void addTemporaryPermission(String permission, long expirationTime) {
+    public synchronized void addTemporaryPermission(String permission, long expirationTime) {
         // If the permission is already permanent, don't add a temporary entry
         if (permissions.contains(permission)) {
             return;
         }
         
-        // Add or update the temporary permission
-        temporaryPermissions.put(permission, expirationTime);
+        // Add or update the temporary permission under its interned name, replacing its opposite form
+        String node = PermissionNodes.name(PermissionNodes.intern(permission));
+        temporaryPermissions.remove(PermissionTree.opposite(node));
+        temporaryPermissions.put(node, expirationTime);
+        record(MutationLog.Type.USER_ADD_TEMPORARY_PERMISSION, node, null, expirationTime);
+        changed();
     }
     
     /**
@@ -202,9 +349,11 @@ public class User {
      * 
      * @param permission the permission
      */
-    public void removePermission(String permission) {
+    public synchronized void removePermission(String permission) {
         permissions.remove(permission);
-        temporaryPermissions.remove(permission); // Also remove any temporary entry
+        temporaryPermissions.remove(permission.toLowerCase()); // Also remove any temporary entry
+        record(MutationLog.Type.USER_REMOVE_PERMISSION, permission, null, 0);
+        changed();
     }
     
     /**
@@ -212,33 +361,42 @@ public class User {
      * 
      * @param permission the permission to remove
      */
-    public void removeTemporaryPermission(String permission) {
-        temporaryPermissions.remove(permission);
-    }
-    
-    /**
-     * Checks if the temporary entries are expired and removes them if needed.
-     * This is called internally to keep the maps clean.
-     */
-    private void cleanExpiredEntries() {
-        cleanExpiredPermissionEntries();
-        cleanExpiredGroupEntries();
+    public synchronized void removeTemporaryPermission(String permission) {
+        temporaryPermissions.remove(permission.toLowerCase());
+        record(MutationLog.Type.USER_REMOVE_TEMPORARY_PERMISSION, permission, null, 0);
+        changed();
     }
     
     /**
-     * Cleans expired permission entries.
-     */
-    private void cleanExpiredPermissionEntries() {
-        long currentTime = System.currentTimeMillis();
-        temporaryPermissions.entrySet().removeIf(entry -> entry.getValue() <= currentTime);
-    }
-    
-    /**
-     * Cleans expired group entries.
+     * Removes the temporary permissions and groups that have expired, notifying the world of each.
+     * 
+     * @param now the current time in milliseconds
+     * @return the removed entries, as "permission &lt;node&gt;" or "group &lt;name&gt;"
      */
-    private void cleanExpiredGroupEntries() {
-        long currentTime = System.currentTimeMillis();
-        temporaryGroups.entrySet().removeIf(entry -> entry.getValue() <= currentTime);
+    public synchronized List<String> removeExpired(long now) {
+        List<String> expiredPermissions = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : temporaryPermissions.entrySet()) {
+            if (entry.getValue() <= now) {
+                expiredPermissions.add(entry.getKey());
+            }
+        }
+        List<String> expiredGroups = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : temporaryGroups.entrySet()) {
+            if (entry.getValue() <= now) {
+                expiredGroups.add(entry.getKey());
+            }
+        }
+        
+        List<String> removed = new ArrayList<>();
+        for (String permission : expiredPermissions) {
+            removeTemporaryPermission(permission);
+            removed.add("permission " + permission);
+        }
+        for (String group : expiredGroups) {
+            removeTemporaryGroup(group);
+            removed.add("group " + group);
+        }
+        return removed;
     }
     
     /**
@@ -247,7 +405,7 @@ public class User {
      * @return the meta
      */
     public Map<String, String> getMeta() {
-        return Collections.unmodifiableMap(meta);
+        return views.meta;
     }
     
     /**
@@ -257,7 +415,7 @@ public class User {
      * @return the value, or null if not found
      */
     public String getMeta(String key) {
-        return meta.get(key);
+        return views.meta.get(key);
     }
     
     /**
@@ -266,12 +424,14 @@ public class User {
      * @param key the key
      * @param value the value
      */
-    public void setMeta(String key, String value) {
+    public synchronized void setMeta(String key, String value) {
         if (value == null) {
             meta.remove(key);
         } else {
             meta.put(key, value);
         }
+        record(MutationLog.Type.USER_SET_META, key, value, 0);
+        modified();
     }
     
     /**
@@ -281,17 +441,18 @@ public class User {
      * @return true if the user has the permission, false otherwise
      */
     public boolean hasPermission(String permission) {
-        cleanExpiredEntries();
-        
         // Check permanent permissions
         if (permissions.contains(permission)) {
             return true;
         }
         
-        // Check temporary permissions
-        long currentTime = System.currentTimeMillis();
-        Long expiry = temporaryPermissions.get(permission);
-        return expiry != null && expiry > currentTime;
+        // Check temporary permissions by node ID, so the lookup allocates nothing
+        Views current = views;
+        if (current.temporaryPermissionIds.length == 0) {
+            return false;
+        }
+        int index = Arrays.binarySearch(current.temporaryPermissionIds, PermissionNodes.find(permission));
+        return index >= 0 && current.temporaryPermissionExpiries[index] > System.currentTimeMillis();
     }
     
     /**
@@ -301,39 +462,151 @@ public class User {
      * @return true if the user is in the group, false otherwise
      */
     public boolean inGroup(String group) {
-        cleanExpiredEntries();
+        Views current = views;
         
         // Check permanent groups
-        if (groups.contains(group)) {
+        if (current.permanentGroupSet.contains(group)) {
             return true;
         }
         
         // Check temporary groups
         long currentTime = System.currentTimeMillis();
-        Long expiry = temporaryGroups.get(group);
+        Long expiry = current.temporaryGroups.get(group);
         return expiry != null && expiry > currentTime;
     }
     
     /**
      * Clears all permissions from the user.
      */
-    public void clearPermissions() {
+    public synchronized void clearPermissions() {
         permissions.clear();
         temporaryPermissions.clear();
+        record(MutationLog.Type.USER_CLEAR_PERMISSIONS, null, null, 0);
+        changed();
     }
     
     /**
      * Clears all metadata from the user.
      */
-    public void clearMeta() {
+    public synchronized void clearMeta() {
         meta.clear();
+        record(MutationLog.Type.USER_CLEAR_META, null, null, 0);
+        modified();
     }
     
     /**
      * Clears all groups from the user.
      */
-    public void clearGroups() {
+    public synchronized void clearGroups() {
         groups.clear();
         temporaryGroups.clear();
+        record(MutationLog.Type.USER_CLEAR_GROUPS, null, null, 0);
+        changed();
+    }
+    
+    /**
+     * An immutable copy of the user's groups, permissions and metadata, published by each change.
+     * Temporary entries that had expired when the copy was made are left out.
+     */
+    private static final class Views {
+        private final long expiresAt;
+        private final List<String> groups;
+        private final List<String> permanentGroups;
+        private final Set<String> permanentGroupSet;
+        private final List<String> permissions;
+        private final List<String> permanentPermissions;
+        private final Map<String, Long> temporaryGroups;
+        private final Map<String, Long> temporaryPermissions;
+        private final Map<String, String> meta;
+        
+        // The temporary permissions again as sorted node IDs with their expiration timestamps
+        private final int[] temporaryPermissionIds;
+        private final long[] temporaryPermissionExpiries;
+        
+        // These views without the temporary entries that lapsed since, built when first needed
+        private volatile Views filtered;
+        
+        /**
+         * Copies the current data of a user.
+         * 
+         * @param user the user to copy, whose lock is held
+         */
+        private Views(User user) {
+            this(new ArrayList<>(user.groups), new ArrayList<>(user.permissions), user.temporaryGroups,
+                    user.temporaryPermissions, user.meta, System.currentTimeMillis());
+        }
+        
+        /**
+         * Builds views from copied data.
+         * 
+         * @param permanentGroups the permanent groups, owned by the new views
+         * @param permanentPermissions the permanent permissions, owned by the new views
+         * @param temporaryGroups the temporary groups with their expiration timestamps
+         * @param temporaryPermissions the temporary permissions with their expiration timestamps
+         * @param meta the metadata
+         * @param now the current time in milliseconds
+         */
+        private Views(List<String> permanentGroups, List<String> permanentPermissions, Map<String, Long> temporaryGroups,
+                      Map<String, Long> temporaryPermissions, Map<String, String> meta, long now) {
+            long firstExpiry = Long.MAX_VALUE;
+            
+            this.permanentGroups = Collections.unmodifiableList(permanentGroups);
+            this.permanentGroupSet = new HashSet<>(permanentGroups);
+            List<String> effectiveGroups = new ArrayList<>(permanentGroups);
+            Map<String, Long> liveGroups = new HashMap<>();
+            for (Map.Entry<String, Long> entry : temporaryGroups.entrySet()) {
+                if (entry.getValue() > now) {
+                    liveGroups.put(entry.getKey(), entry.getValue());
+                    firstExpiry = Math.min(firstExpiry, entry.getValue());
+                    if (!permanentGroupSet.contains(entry.getKey())) {
+                        effectiveGroups.add(entry.getKey());
+                    }
+                }
+            }
+            this.groups = Collections.unmodifiableList(effectiveGroups);
+            this.temporaryGroups = Collections.unmodifiableMap(liveGroups);
+            
+            this.permanentPermissions = Collections.unmodifiableList(permanentPermissions);
+            Set<String> permanentPermissionSet = new HashSet<>(permanentPermissions);
+            List<String> effectivePermissions = new ArrayList<>(permanentPermissions);
+            Map<String, Long> livePermissions = new HashMap<>();
+            for (Map.Entry<String, Long> entry : temporaryPermissions.entrySet()) {
+                if (entry.getValue() > now) {
+                    livePermissions.put(entry.getKey(), entry.getValue());
+                    firstExpiry = Math.min(firstExpiry, entry.getValue());
+                    if (!permanentPermissionSet.contains(entry.getKey())) {
+                        effectivePermissions.add(entry.getKey());
+                    }
+                }
+            }
+            this.permissions = Collections.unmodifiableList(effectivePermissions);
+            this.temporaryPermissions = Collections.unmodifiableMap(livePermissions);
+            
+            Map<Integer, Long> expiriesById = new TreeMap<>();
+            for (Map.Entry<String, Long> entry : livePermissions.entrySet()) {
+                expiriesById.put(PermissionNodes.intern(entry.getKey()), entry.getValue());
+            }
+            this.temporaryPermissionIds = new int[expiriesById.size()];
+            this.temporaryPermissionExpiries = new long[expiriesById.size()];
+            int index = 0;
+            for (Map.Entry<Integer, Long> entry : expiriesById.entrySet()) {
+                temporaryPermissionIds[index] = entry.getKey();
+                temporaryPermissionExpiries[index++] = entry.getValue();
+            }
+            
+            this.meta = Collections.unmodifiableMap(new HashMap<>(meta));
+            this.expiresAt = firstExpiry;
+        }
+        
+        /**
+         * Builds views that leave out the temporary entries expired by now.
+         * 
+         * @param now the current time in milliseconds
+         * @return the filtered views
+         */
+        private Views withoutExpired(long now) {
+            return new Views(new ArrayList<>(permanentGroups), new ArrayList<>(permanentPermissions),
+                    temporaryGroups, temporaryPermissions, meta, now);
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,109 @@
+package org.frizzlenpop.frizzlenRanks.model;
+
+/**
+ * The resolved prefix and suffix of a user, with their color codes already translated.
+ * Built once per change to the user or its groups and shared by chat, tab and Vault lookups.
+ */
+public final class UserDisplay {
+    /**
+     * The display of a user without prefix or suffix.
+     */
+    public static final UserDisplay EMPTY = new UserDisplay("", "");
+
+    private final String prefix;
+    private final String suffix;
+    private final String coloredPrefix;
+    private final String coloredSuffix;
+
+    /**
+     * Creates a new display.
+     *
+     * @param prefix the raw prefix, using &amp; color codes
+     * @param suffix the raw suffix, using &amp; color codes
+     */
+    public UserDisplay(String prefix, String suffix) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.coloredPrefix = prefix.replace('&', '§');
+        this.coloredSuffix = suffix.replace('&', '§');
+    }
+
+    /**
+     * Resolves the display of a user. The user's own prefix and suffix win; otherwise
+     * each is taken from the highest priority group that defines one.
+     *
+     * @param world the world the user belongs to
+     * @param user the user
+     * @return the resolved display
+     */
+    static UserDisplay resolve(World world, User user) {
+        String prefix = user.getMeta("prefix");
+        String suffix = user.getMeta("suffix");
+        int prefixPriority = Integer.MIN_VALUE;
+        int suffixPriority = Integer.MIN_VALUE;
+        boolean groupPrefix = prefix == null;
+        boolean groupSuffix = suffix == null;
+
+        if (groupPrefix || groupSuffix) {
+            for (String groupName : user.getGroups()) {
+                if (!world.hasGroup(groupName)) {
+                    continue;
+                }
+
+                Group group = world.getGroup(groupName);
+                int priority = group.getPriority();
+                String groupValue = group.getMeta("prefix");
+                if (groupPrefix && groupValue != null && (prefix == null || priority > prefixPriority)) {
+                    prefix = groupValue;
+                    prefixPriority = priority;
+                }
+                groupValue = group.getMeta("suffix");
+                if (groupSuffix && groupValue != null && (suffix == null || priority > suffixPriority)) {
+                    suffix = groupValue;
+                    suffixPriority = priority;
+                }
+            }
+        }
+
+        if (prefix == null && suffix == null) {
+            return EMPTY;
+        }
+        return new UserDisplay(prefix != null ? prefix : "", suffix != null ? suffix : "");
+    }
+
+    /**
+     * Gets the raw prefix.
+     *
+     * @return the prefix, or an empty string
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Gets the raw suffix.
+     *
+     * @return the suffix, or an empty string
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Gets the prefix with &amp; color codes translated.
+     *
+     * @return the colored prefix, or an empty string
+     */
+    public String getColoredPrefix() {
+        return coloredPrefix;
+    }
+
+    /**
+     * Gets the suffix with &amp; color codes translated.
+     *
+     * @return the colored suffix, or an empty string
+     */
+    public String getColoredSuffix() {
+        return coloredSuffix;
+    }
+}
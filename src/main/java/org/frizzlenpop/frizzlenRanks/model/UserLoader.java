@@ -0,0 +1,15 @@
+package org.frizzlenpop.frizzlenRanks.model;
+
+/**
+ * Loads a user's stored data when a world first needs it.
+ */
+public interface UserLoader {
+
+    /**
+     * Fills a new user with its stored data.
+     *
+     * @param user the empty user, named after the user to load
+     * @return true if the user was found in storage
+     */
+    boolean load(User user);
+}
@@ -1,16 +1,55 @@
 package org.frizzlenpop.frizzlenRanks.model;
 
+import org.frizzlenpop.frizzlenRanks.permission.PermissionResolver;
+import org.frizzlenpop.frizzlenRanks.permission.PermissionSnapshot;
+
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 /**
  * Represents a world and its permission settings.
+ * Users and groups are changed under the world's lock, while lookups read a concurrent
+ * user map and an immutable group map that is replaced as a whole, so they need no lock.
  */
 public class World {
     private final String name;
     private final Map<String, User> users;
-    private final Map<String, Group> groups;
+    private volatile Map<String, Group> groups;
+    private final PermissionResolver resolver;
+    
+    // Bumped by every change to a group; caches built from the groups are only kept if it did not move
+    private volatile int groupGeneration;
+    
+    // Resolved prefixes and suffixes by lower-cased user name, dropped when the user or one of its groups changes
+    private final Map<String, UserDisplay> displays;
+    
+    // Lower-cased names of the loaded users in each lower-cased group, including temporary members
+    private final Map<String, Set<String>> members;
+    
+    // Which groups inherit from which, with the transitive closure of every group
+    private final InheritanceGraph inheritance;
+    
+    // Lower-cased names of users changed since the last save, and whether any group changed
+    private final Set<String> dirtyUsers;
+    private boolean groupsDirty;
+    
+    // Loads users from storage on first use, and remembers names that were not found
+    private static final int MISSING_USERS_LIMIT = 1024;
+    private UserLoader userLoader;
+    private final Map<String, Boolean> missingUsers;
+    
+    // Receives every change as it is made, or null if changes are only saved as a whole
+    private volatile MutationLog mutationLog;
     
     /**
      * Creates a new World with the given name.
@@ -19,8 +58,53 @@ public class World {
      */
     public World(String name) {
         this.name = name.toLowerCase();
-        this.users = new HashMap<>();
-        this.groups = new HashMap<>();
+        this.users = new ConcurrentHashMap<>();
+        this.groups = Collections.emptyMap();
+        this.resolver = new PermissionResolver(this);
+        this.displays = new ConcurrentHashMap<>();
+        this.members = new HashMap<>();
+        this.inheritance = new InheritanceGraph();
+        this.dirtyUsers = new HashSet<>();
+        this.missingUsers = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MISSING_USERS_LIMIT;
+            }
+        };
+    }
+    
+    /**
+     * Sets the loader used to load users that are not in memory.
+     * 
+     * @param userLoader the loader, or null if all users are kept in memory
+     */
+    public synchronized void setUserLoader(UserLoader userLoader) {
+        this.userLoader = userLoader;
+    }
+    
+    /**
+     * Sets the log that records changes to this world's users and groups.
+     * 
+     * @param mutationLog the log, or null to stop recording
+     */
+    public void setMutationLog(MutationLog mutationLog) {
+        this.mutationLog = mutationLog;
+    }
+    
+    /**
+     * Records a change made to a user or group of this world.
+     * 
+     * @param type the kind of change
+     * @param owner the lower-cased name of the user or group
+     * @param key the permission, group or meta key, or null
+     * @param value the new value, or null
+     * @param number the expiration time or priority, or 0
+     */
+    void record(MutationLog.Type type, String owner, String key, String value, long number) {
+        MutationLog log = mutationLog;
+        if (log != null) {
+            log.record(name, type, owner, key, value, number);
+        }
     }
     
     /**
@@ -33,36 +117,106 @@ public class World {
     }
     
     /**
-     * Gets a user by name, creating one if it doesn't exist.
+     * Gets a user by name, loading it from storage or creating it if needed.
      * 
      * @param name the name of the user
      * @return the user object
      */
-    public User getUser(String name) {
+    public synchronized User getUser(String name) {
         String lowerName = name.toLowerCase();
-        if (!users.containsKey(lowerName)) {
-            users.put(lowerName, new User(lowerName));
+        User user = users.get(lowerName);
+        if (user == null) {
+            user = loadUser(lowerName);
+            if (user == null) {
+                // Not stored anywhere yet, so create the user and save it
+                user = new User(lowerName);
+                user.setWorld(this);
+                users.put(lowerName, user);
+                indexMembers(lowerName, user.getPublishedGroups());
+                missingUsers.remove(lowerName);
+                userChanged(lowerName);
+            }
         }
-        return users.get(lowerName);
+        user.touch();
+        return user;
     }
     
     /**
-     * Checks if a user exists in this world.
+     * Checks if a user exists in this world, loading it from storage if needed.
+     * Names that were not found are remembered, so repeated misses don't hit storage.
      * 
      * @param name the name of the user
      * @return true if the user exists
      */
-    public boolean hasUser(String name) {
+    public synchronized boolean hasUser(String name) {
+        String lowerName = name.toLowerCase();
+        return users.containsKey(lowerName) || loadUser(lowerName) != null;
+    }
+    
+    /**
+     * Checks if a user is currently held in memory, without loading it.
+     * 
+     * @param name the name of the user
+     * @return true if the user is loaded
+     */
+    public boolean isUserLoaded(String name) {
         return users.containsKey(name.toLowerCase());
     }
     
     /**
-     * Gets all users in this world.
+     * Gets a user only if it is held in memory. Never loads or creates the user and
+     * takes no lock, so it is safe on async threads such as chat.
      * 
-     * @return a collection of all users
+     * @param name the name of the user
+     * @return the user, or null if it is not loaded
      */
-    public Collection<User> getUsers() {
-        return users.values();
+    public User getLoadedUser(String name) {
+        return users.get(name.toLowerCase());
+    }
+    
+    /**
+     * Gets the generation of the groups, which moves with every change to a group.
+     * 
+     * @return the current generation
+     */
+    public int getGroupGeneration() {
+        return groupGeneration;
+    }
+    
+    /**
+     * Loads a user from storage into memory.
+     * 
+     * @param lowerName the lower-cased name of the user
+     * @return the loaded user, or null if it is not stored
+     */
+    private User loadUser(String lowerName) {
+        if (userLoader == null || missingUsers.containsKey(lowerName)) {
+            return null;
+        }
+        
+        User user = new User(lowerName);
+        if (!userLoader.load(user)) {
+            missingUsers.put(lowerName, Boolean.TRUE);
+            return null;
+        }
+        
+        // Attach the user only after loading, so loading does not mark it as changed
+        user.setWorld(this);
+        users.put(lowerName, user);
+        indexMembers(lowerName, user.getPublishedGroups());
+        resolver.invalidateUser(lowerName);
+        displays.remove(lowerName);
+        return user;
+    }
+    
+    /**
+     * Gets all users currently loaded in this world.
+     * Users that are only in storage are not included.
+     * 
+     * @return a copy of the loaded users
+     */
+    public synchronized Collection<User> getUsers() {
+        return Collections.unmodifiableList(new ArrayList<>(users.values()));
     }
     
     /**
@@ -71,8 +225,164 @@ public class World {
      * @param name the name of the user to remove
      * @return true if the user was found and removed
      */
-    public boolean removeUser(String name) {
-        return users.remove(name.toLowerCase()) != null;
+    public synchronized boolean removeUser(String name) {
+        String lowerName = name.toLowerCase();
+        record(MutationLog.Type.USER_REMOVE, lowerName, null, null, 0);
+        userChanged(lowerName);
+        missingUsers.put(lowerName, Boolean.TRUE);
+        User removed = users.remove(lowerName);
+        if (removed == null) {
+            return false;
+        }
+        unindexMembers(lowerName, removed.getPublishedGroups());
+        return true;
+    }
+    
+    /**
+     * Unloads users that have not been used for a while and have no unsaved changes.
+     * 
+     * @param idleSince users last used before this time are unloaded
+     * @param keep returns true for users that must stay loaded, such as online players
+     * @return the number of users unloaded
+     */
+    public synchronized int evictUsers(long idleSince, Predicate<String> keep) {
+        int evicted = 0;
+        Iterator<Map.Entry<String, User>> iterator = users.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, User> entry = iterator.next();
+            String userName = entry.getKey();
+            if (entry.getValue().getLastUsed() >= idleSince || dirtyUsers.contains(userName) || keep.test(userName)) {
+                continue;
+            }
+            
+            iterator.remove();
+            unindexMembers(userName, entry.getValue().getPublishedGroups());
+            resolver.invalidateUser(userName);
+            displays.remove(userName);
+            evicted++;
+        }
+        return evicted;
+    }
+    
+    /**
+     * Gets the loaded users that are in a group, permanently or temporarily.
+     * 
+     * @param groupName the name of the group
+     * @return the lower-cased names of the members
+     */
+    public synchronized Set<String> getMembers(String groupName) {
+        Set<String> groupMembers = members.get(groupName.toLowerCase());
+        return groupMembers != null ? new HashSet<>(groupMembers) : new HashSet<>();
+    }
+    
+    /**
+     * Gets the loaded users whose permissions depend on a group: its members and
+     * the members of every group that inherits from it, directly or indirectly.
+     * 
+     * @param groupName the name of the group
+     * @return the lower-cased names of the affected users
+     */
+    public synchronized Set<String> getAffectedUsers(String groupName) {
+        String lowerName = groupName.toLowerCase();
+        Set<String> affected = getMembers(lowerName);
+        for (String descendant : inheritance.getDescendants(lowerName)) {
+            Set<String> groupMembers = members.get(descendant);
+            if (groupMembers != null) {
+                affected.addAll(groupMembers);
+            }
+        }
+        return affected;
+    }
+    
+    /**
+     * Called by users of this world after the groups they are in changed.
+     * 
+     * @param user the user that changed
+     * @param userName the lower-cased name of the user
+     * @param before the groups before the change
+     * @param after the groups after the change
+     */
+    synchronized void membershipChanged(User user, String userName, List<String> before, List<String> after) {
+        // Only users held in memory are indexed; an evicted copy that is still referenced somewhere is not
+        if (users.get(userName) != user) {
+            return;
+        }
+        unindexMembers(userName, before);
+        indexMembers(userName, after);
+    }
+    
+    /**
+     * Adds a user to the member sets of its groups.
+     * 
+     * @param userName the lower-cased name of the user
+     * @param userGroups the user's groups
+     */
+    private void indexMembers(String userName, List<String> userGroups) {
+        for (String groupName : userGroups) {
+            members.computeIfAbsent(groupName.toLowerCase(), key -> new HashSet<>()).add(userName);
+        }
+    }
+    
+    /**
+     * Removes a user from the member sets of its groups.
+     * 
+     * @param userName the lower-cased name of the user
+     * @param userGroups the user's groups
+     */
+    private void unindexMembers(String userName, List<String> userGroups) {
+        for (String groupName : userGroups) {
+            String lowerGroup = groupName.toLowerCase();
+            Set<String> groupMembers = members.get(lowerGroup);
+            if (groupMembers != null && groupMembers.remove(userName) && groupMembers.isEmpty()) {
+                members.remove(lowerGroup);
+            }
+        }
+    }
+    
+    /**
+     * Gets every group a group inherits from, directly or indirectly, in the order their
+     * permissions apply: each parent follows the group inheriting from it, and a group
+     * reached twice is listed once. Read from the cached closure without a lock.
+     * 
+     * @param groupName the name of the group
+     * @return the lower-cased names of the inherited groups, which may include missing groups
+     */
+    public List<String> getInheritedGroups(String groupName) {
+        return inheritance.getAncestors(groupName.toLowerCase());
+    }
+    
+    /**
+     * Gets every group that inherits from a group, directly or indirectly.
+     * 
+     * @param groupName the name of the group
+     * @return the lower-cased names of the inheriting groups
+     */
+    public Set<String> getInheritingGroups(String groupName) {
+        return inheritance.getDescendants(groupName.toLowerCase());
+    }
+    
+    /**
+     * Called by groups of this world before they inherit from another group.
+     * 
+     * @param group the inheriting group
+     * @param parentName the lower-cased name of the group to inherit from
+     * @return false if the parent already inherits from the group, which would make a cycle
+     */
+    synchronized boolean inheritanceAdded(Group group, String parentName) {
+        // A removed group is no longer part of the graph
+        return groups.get(group.getName()) != group || inheritance.add(group.getName(), parentName);
+    }
+    
+    /**
+     * Called by groups of this world after they stopped inheriting from another group.
+     * 
+     * @param group the inheriting group
+     * @param parentName the lower-cased name of the group it inherited from
+     */
+    synchronized void inheritanceRemoved(Group group, String parentName) {
+        if (groups.get(group.getName()) == group) {
+            inheritance.remove(group.getName(), parentName);
+        }
     }
     
     /**
@@ -83,10 +393,30 @@ public class World {
      */
     public Group getGroup(String name) {
         String lowerName = name.toLowerCase();
-        if (!groups.containsKey(lowerName)) {
-            groups.put(lowerName, new Group(lowerName));
+        Group group = groups.get(lowerName);
+        return group != null ? group : createGroup(lowerName);
+    }
+    
+    /**
+     * Creates a group and publishes a new group map containing it.
+     * 
+     * @param lowerName the lower-cased name of the group
+     * @return the group, which may have been created by another caller first
+     */
+    private synchronized Group createGroup(String lowerName) {
+        Group group = groups.get(lowerName);
+        if (group != null) {
+            return group;
         }
-        return groups.get(lowerName);
+        
+        group = new Group(lowerName);
+        group.setWorld(this);
+        Map<String, Group> updated = new HashMap<>(groups);
+        updated.put(lowerName, group);
+        groups = Collections.unmodifiableMap(updated);
+        record(MutationLog.Type.GROUP_CREATE, lowerName, null, null, 0);
+        groupChanged(lowerName);
+        return group;
     }
     
     /**
@@ -114,95 +444,247 @@ public class World {
      * @param name the name of the group to remove
      * @return true if the group was found and removed
      */
-    public boolean removeGroup(String name) {
-        return groups.remove(name.toLowerCase()) != null;
+    public synchronized boolean removeGroup(String name) {
+        String lowerName = name.toLowerCase();
+        record(MutationLog.Type.GROUP_REMOVE, lowerName, null, null, 0);
+        Map<String, Group> updated = new HashMap<>(groups);
+        boolean removed = updated.remove(lowerName) != null;
+        groups = Collections.unmodifiableMap(updated);
+        inheritance.removeParents(lowerName);
+        groupChanged(lowerName);
+        return removed;
     }
     
     /**
      * Checks if a user has a permission in this world, including group permissions.
+     * The check is answered from the user's cached permission snapshot.
      * 
      * @param userName the name of the user
      * @param permission the permission to check
      * @return true if the user has the permission
      */
     public boolean hasPermission(String userName, String permission) {
-        String lowerName = userName.toLowerCase();
-        if (!users.containsKey(lowerName)) {
-            return false;
+        PermissionSnapshot snapshot = resolver.getCachedSnapshot(userName);
+        if (snapshot != null) {
+            return snapshot.hasPermission(permission);
         }
         
-        User user = users.get(lowerName);
-        
-        // Check direct user permissions
-        if (user.hasPermission(permission)) {
-            return true;
-        }
-        
-        // Check negated permission
-        if (user.hasPermission("-" + permission)) {
+        if (!hasUser(userName)) {
             return false;
         }
         
-        // Check group permissions
-        for (String groupName : user.getGroups()) {
-            if (hasGroupPermission(groupName, permission, new HashMap<>())) {
-                return true;
-            }
-            if (hasGroupPermission(groupName, "-" + permission, new HashMap<>())) {
-                return false;
-            }
-        }
-        
-        return false;
+        return resolver.getSnapshot(userName, getUser(userName)).hasPermission(permission);
     }
     
     /**
-     * Checks if a group has a permission, including inherited permissions.
+     * Checks if a user has a permission without ever loading the user or taking the
+     * world's lock, for async callers. A user that is not in memory has no permissions.
      * 
-     * @param groupName the name of the group
+     * @param userName the name of the user
      * @param permission the permission to check
-     * @param checked a map of already checked groups to prevent infinite recursion
-     * @return true if the group has the permission
+     * @return true if the user is loaded and has the permission
      */
-    private boolean hasGroupPermission(String groupName, String permission, Map<String, Boolean> checked) {
-        String lowerName = groupName.toLowerCase();
-        
-        // Prevent infinite recursion from circular inheritance
-        if (checked.containsKey(lowerName)) {
-            return checked.get(lowerName);
+    public boolean hasLoadedPermission(String userName, String permission) {
+        PermissionSnapshot snapshot = resolver.getCachedSnapshot(userName);
+        if (snapshot != null) {
+            return snapshot.hasPermission(permission);
         }
         
-        // Mark as being checked
-        checked.put(lowerName, false);
+        User user = getLoadedUser(userName);
+        return user != null && resolver.getSnapshot(userName, user).hasPermission(permission);
+    }
+    
+    /**
+     * Gets the effective permission snapshot of a user in this world.
+     * 
+     * @param userName the name of the user
+     * @return the user's snapshot
+     */
+    public PermissionSnapshot getPermissionSnapshot(String userName) {
+        return resolver.getSnapshot(userName, getUser(userName));
+    }
+    
+    /**
+     * Gets the resolved prefix and suffix of a user, from cache when possible.
+     * 
+     * @param userName the name of the user
+     * @return the user's display, or an empty display if the user does not exist
+     */
+    public UserDisplay getDisplay(String userName) {
+        String lowerName = userName.toLowerCase();
+        UserDisplay display = displays.get(lowerName);
+        if (display != null) {
+            return display;
+        }
         
-        if (!groups.containsKey(lowerName)) {
-            return false;
+        // Misses are remembered by the bounded missing-user cache, so only displays of loaded users are cached
+        if (!hasUser(lowerName)) {
+            return UserDisplay.EMPTY;
+        }
+        return resolveDisplay(lowerName, getUser(lowerName));
+    }
+    
+    /**
+     * Gets the resolved prefix and suffix of a user without ever loading the user, for
+     * async callers such as chat. A user that is not in memory gets an empty display.
+     * 
+     * @param userName the name of the user
+     * @return the user's display
+     */
+    public UserDisplay getLoadedDisplay(String userName) {
+        String lowerName = userName.toLowerCase();
+        UserDisplay display = displays.get(lowerName);
+        if (display != null) {
+            return display;
         }
         
-        Group group = groups.get(lowerName);
+        User user = users.get(lowerName);
+        return user != null ? resolveDisplay(lowerName, user) : UserDisplay.EMPTY;
+    }
+    
+    /**
+     * Resolves a user's display and caches it, unless the user or a group changed
+     * meanwhile and the result may already be stale.
+     * 
+     * @param lowerName the lower-cased name of the user
+     * @param user the user
+     * @return the resolved display
+     */
+    private UserDisplay resolveDisplay(String lowerName, User user) {
+        int userGeneration = user.getGeneration();
+        int groupsGeneration = groupGeneration;
+        UserDisplay display = UserDisplay.resolve(this, user);
+        displays.put(lowerName, display);
         
-        // Check direct group permission
-        if (group.hasPermission(permission)) {
-            checked.put(lowerName, true);
-            return true;
+        // Changes bump their generation before dropping cached displays, so a display
+        // cached after such a drop is caught here and dropped again
+        if (user.getGeneration() != userGeneration || groupGeneration != groupsGeneration) {
+            displays.remove(lowerName, display);
         }
-        
-        // Check inherited groups
-        for (String inheritedGroup : group.getInheritance()) {
-            if (hasGroupPermission(inheritedGroup, permission, checked)) {
-                checked.put(lowerName, true);
-                return true;
-            }
+        return display;
+    }
+    
+    /**
+     * Called by users of this world after their permissions or groups change.
+     * 
+     * @param userName the lower-cased name of the user
+     */
+    void userChanged(String userName) {
+        resolver.invalidateUser(userName);
+        displays.remove(userName);
+        markUserDirty(userName);
+    }
+    
+    /**
+     * Called by users of this world after their metadata changes.
+     * 
+     * @param userName the lower-cased name of the user
+     */
+    void userModified(String userName) {
+        displays.remove(userName);
+        markUserDirty(userName);
+    }
+    
+    /**
+     * Called by groups of this world after their permissions, inheritance or priority change.
+     * 
+     * @param groupName the lower-cased name of the group
+     */
+    void groupChanged(String groupName) {
+        groupGeneration++;
+        resolver.invalidateGroup(groupName);
+        invalidateMemberDisplays(groupName);
+        markGroupsDirty();
+    }
+    
+    /**
+     * Called by groups of this world after their metadata changes.
+     * 
+     * @param groupName the lower-cased name of the group
+     */
+    void groupModified(String groupName) {
+        groupGeneration++;
+        invalidateMemberDisplays(groupName);
+        markGroupsDirty();
+    }
+    
+    /**
+     * Drops the cached displays of a group's members. Displays only use the user's
+     * own groups, so members of inheriting groups keep theirs.
+     * 
+     * @param groupName the lower-cased name of the group
+     */
+    private void invalidateMemberDisplays(String groupName) {
+        for (String userName : getMembers(groupName)) {
+            displays.remove(userName);
         }
-        
-        return false;
+    }
+    
+    /**
+     * Marks a user as changed since the last save.
+     * 
+     * @param userName the lower-cased name of the user
+     */
+    public synchronized void markUserDirty(String userName) {
+        dirtyUsers.add(userName);
+    }
+    
+    /**
+     * Marks the groups of this world as changed since the last save.
+     */
+    public synchronized void markGroupsDirty() {
+        groupsDirty = true;
+    }
+    
+    /**
+     * Checks if anything in this world changed since the last save.
+     * 
+     * @return true if the world has unsaved changes
+     */
+    public synchronized boolean isDirty() {
+        return groupsDirty || !dirtyUsers.isEmpty();
+    }
+    
+    /**
+     * Gets the users changed since the last save and resets the set.
+     * 
+     * @return the lower-cased names of the changed users
+     */
+    public synchronized Set<String> takeDirtyUsers() {
+        Set<String> changed = new HashSet<>(dirtyUsers);
+        dirtyUsers.clear();
+        return changed;
+    }
+    
+    /**
+     * Checks if the groups changed since the last save and resets the flag.
+     * 
+     * @return true if the groups need to be saved
+     */
+    public synchronized boolean takeGroupsDirty() {
+        boolean changed = groupsDirty;
+        groupsDirty = false;
+        return changed;
+    }
+    
+    /**
+     * Forgets all unsaved changes, used after the world was loaded from disk.
+     */
+    public synchronized void clearDirty() {
+        dirtyUsers.clear();
+        groupsDirty = false;
     }
     
     /**
      * Clears all groups in this world.
      * This is useful for reloading groups from files.
      */
-    public void clearGroups() {
-        groups.clear();
+    public synchronized void clearGroups() {
+        groups = Collections.emptyMap();
+        inheritance.clear();
+        groupGeneration++;
+        resolver.invalidateAll();
+        displays.clear();
+        markGroupsDirty();
     }
 } 
\ No newline at end of file
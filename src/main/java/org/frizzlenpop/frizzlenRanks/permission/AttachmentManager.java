@@ -0,0 +1,162 @@
+package org.frizzlenpop.frizzlenRanks.permission;
+
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.plugin.Plugin;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Keeps one permission attachment per online player together with the values
+ * last applied to it. Updates only touch the nodes that changed and are written
+ * to the attachment in bulk, so Bukkit recalculates the player's permissions once.
+ */
+public class AttachmentManager {
+    private final Plugin plugin;
+    // Keyed by lower-cased player name
+    private final Map<String, PermissionAttachment> attachments;
+    private final Map<String, Map<String, Boolean>> applied;
+
+    // The attachment's backing map; setPermission recalculates after every single node
+    private final Field permissionsField;
+
+    /**
+     * Creates a new AttachmentManager.
+     *
+     * @param plugin the plugin owning the attachments
+     */
+    public AttachmentManager(Plugin plugin) {
+        this.plugin = plugin;
+        this.attachments = new HashMap<>();
+        this.applied = new HashMap<>();
+        this.permissionsField = findPermissionsField(plugin);
+    }
+
+    /**
+     * Brings a player's attachment in line with the given permission values.
+     *
+     * @param player the player to update
+     * @param permissions the complete set of values the attachment should hold
+     * @return the number of nodes that were added, changed or removed
+     */
+    public int apply(Player player, Map<String, Boolean> permissions) {
+        String key = player.getName().toLowerCase();
+        PermissionAttachment attachment = attachments.get(key);
+        if (attachment == null || attachment.getPermissible() != player) {
+            // First update, or the player has rejoined since the attachment was created
+            attachment = player.addAttachment(plugin);
+            attachments.put(key, attachment);
+            applied.put(key, new HashMap<>());
+        }
+
+        Map<String, Boolean> current = applied.get(key);
+        Map<String, Boolean> changed = new HashMap<>();
+        for (Map.Entry<String, Boolean> entry : permissions.entrySet()) {
+            if (!entry.getValue().equals(current.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String permission : current.keySet()) {
+            if (!permissions.containsKey(permission)) {
+                changed.put(permission, null);
+            }
+        }
+
+        if (changed.isEmpty()) {
+            return 0;
+        }
+
+        write(attachment, changed);
+        for (Map.Entry<String, Boolean> entry : changed.entrySet()) {
+            if (entry.getValue() == null) {
+                current.remove(entry.getKey());
+            } else {
+                current.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changed.size();
+    }
+
+    /**
+     * Removes a player's attachment and forgets the values applied to it.
+     *
+     * @param playerName the name of the player
+     */
+    public void remove(String playerName) {
+        String key = playerName.toLowerCase();
+        PermissionAttachment attachment = attachments.remove(key);
+        applied.remove(key);
+        if (attachment != null) {
+            try {
+                attachment.remove();
+            } catch (IllegalArgumentException e) {
+                // The player has already been removed from the server
+            }
+        }
+    }
+
+    /**
+     * Removes every attachment.
+     */
+    public void clear() {
+        for (String key : new ArrayList<>(attachments.keySet())) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Writes changed values to an attachment and recalculates once.
+     *
+     * @param attachment the attachment to update
+     * @param changed the new values, or null for nodes to unset
+     */
+    @SuppressWarnings("unchecked")
+    private void write(PermissionAttachment attachment, Map<String, Boolean> changed) {
+        if (permissionsField != null) {
+            try {
+                Map<String, Boolean> backing = (Map<String, Boolean>) permissionsField.get(attachment);
+                for (Map.Entry<String, Boolean> entry : changed.entrySet()) {
+                    if (entry.getValue() == null) {
+                        backing.remove(entry.getKey());
+                    } else {
+                        backing.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                attachment.getPermissible().recalculatePermissions();
+                return;
+            } catch (IllegalAccessException | ClassCastException e) {
+                plugin.getLogger().log(Level.WARNING, "Bulk attachment update failed, falling back to single updates", e);
+            }
+        }
+
+        // Fallback: every call recalculates, but the result is the same
+        for (Map.Entry<String, Boolean> entry : changed.entrySet()) {
+            if (entry.getValue() == null) {
+                attachment.unsetPermission(entry.getKey());
+            } else {
+                attachment.setPermission(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Looks up the private map backing PermissionAttachment.
+     *
+     * @param plugin the plugin used for logging
+     * @return the field, or null if it is not available on this server
+     */
+    private static Field findPermissionsField(Plugin plugin) {
+        try {
+            Field field = PermissionAttachment.class.getDeclaredField("permissions");
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            plugin.getLogger().warning("Could not access permission attachment internals, permission updates will not be batched");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.frizzlenpop.frizzlenRanks.permission;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A global registry that interns every raw permission node once and gives it a
+ * dense int ID. Negated nodes such as "-node" are interned separately from "node".
+ * Groups and users in every world share the same node strings through this table.
+ */
+public final class PermissionNodes {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[256];
+    private static int size;
+
+    private PermissionNodes() {
+    }
+
+    /**
+     * Gets the ID of a permission node, registering it if it is new.
+     *
+     * @param permission the raw permission node, in any case
+     * @return the node's ID
+     */
+    public static int intern(String permission) {
+        String lowerPermission = permission.toLowerCase();
+        Integer id = ids.get(lowerPermission);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (PermissionNodes.class) {
+            id = ids.get(lowerPermission);
+            if (id != null) {
+                return id;
+            }
+
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+            }
+            // The name is stored before the ID is published, so any reader with the ID can see it
+            names[size] = lowerPermission;
+            ids.put(lowerPermission, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Gets the ID of a permission node without registering it.
+     * Already lower-cased nodes, the common case, are looked up without allocating.
+     *
+     * @param permission the raw permission node, in any case
+     * @return the node's ID, or -1 if the node was never registered
+     */
+    public static int find(String permission) {
+        Integer id = ids.get(permission.toLowerCase());
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Gets the interned name of a node.
+     *
+     * @param id the node's ID
+     * @return the lower-cased raw permission node
+     */
+    public static String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Gets the number of registered nodes.
+     *
+     * @return the number of nodes
+     */
+    public static int size() {
+        return ids.size();
+    }
+}
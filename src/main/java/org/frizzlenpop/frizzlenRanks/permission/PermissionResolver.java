@@ -0,0 +1,275 @@
+package org.frizzlenpop.frizzlenRanks.permission;
+
+import org.frizzlenpop.frizzlenRanks.model.Group;
+import org.frizzlenpop.frizzlenRanks.model.User;
+import org.frizzlenpop.frizzlenRanks.model.World;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves and caches effective permission snapshots for the users of a world.
+ * Snapshots are only rebuilt after the user, one of their groups or an
+ * inherited group has changed, or when a temporary entry lapses.
+ * Snapshots are immutable and may be read and resolved on any thread.
+ */
+public class PermissionResolver {
+    private final World world;
+    // Keyed by lower-cased user name, so each user has at most one entry
+    private final Map<String, PermissionSnapshot> snapshots;
+    // The users whose cached snapshots were resolved from each group, by lower-cased group name.
+    // May list users whose snapshot is gone already; it never misses one that is cached.
+    private final Map<String, Set<String>> dependents;
+
+    /**
+     * Creates a new PermissionResolver.
+     *
+     * @param world the world whose users and groups are resolved
+     */
+    public PermissionResolver(World world) {
+        this.world = world;
+        this.snapshots = new ConcurrentHashMap<>();
+        this.dependents = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets the cached snapshot for a user if it is still valid.
+     *
+     * @param userName the name of the user, in any case
+     * @return the snapshot, or null if it needs to be resolved
+     */
+    public PermissionSnapshot getCachedSnapshot(String userName) {
+        PermissionSnapshot snapshot = snapshots.get(userName.toLowerCase());
+        if (snapshot == null || snapshot.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Gets the snapshot for a user, resolving it if needed.
+     * A snapshot resolved while the user or a group changed is returned but not kept,
+     * since the change may have invalidated the cache before it was stored.
+     *
+     * @param userName the name of the user, in any case
+     * @param user the user to resolve
+     * @return the user's snapshot
+     */
+    public PermissionSnapshot getSnapshot(String userName, User user) {
+        PermissionSnapshot snapshot = getCachedSnapshot(userName);
+        if (snapshot == null) {
+            int userGeneration = user.getGeneration();
+            int groupGeneration = world.getGroupGeneration();
+            snapshot = resolve(user);
+
+            // A group change between caching and indexing bumps the generation checked below
+            String lowerName = snapshot.getUserName();
+            snapshots.put(lowerName, snapshot);
+            index(lowerName, snapshot);
+            if (user.getGeneration() != userGeneration || world.getGroupGeneration() != groupGeneration) {
+                snapshots.remove(lowerName, snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Discards the snapshot of a user after it has changed.
+     *
+     * @param userName the lower-cased name of the user
+     */
+    public void invalidateUser(String userName) {
+        PermissionSnapshot snapshot = snapshots.remove(userName);
+        if (snapshot == null) {
+            return;
+        }
+
+        for (String groupName : snapshot.getGroups()) {
+            Set<String> users = dependents.get(groupName);
+            if (users != null) {
+                users.remove(userName);
+            }
+        }
+
+        // A snapshot cached by another thread meanwhile may just have been unindexed
+        PermissionSnapshot cached = snapshots.get(userName);
+        if (cached != null) {
+            index(userName, cached);
+        }
+    }
+
+    /**
+     * Discards every snapshot that was resolved from a group.
+     *
+     * @param groupName the lower-cased name of the group
+     */
+    public void invalidateGroup(String groupName) {
+        Set<String> users = dependents.remove(groupName);
+        if (users == null) {
+            return;
+        }
+
+        for (String userName : users) {
+            snapshots.remove(userName);
+        }
+    }
+
+    /**
+     * Records a snapshot under each group it was resolved from.
+     *
+     * @param userName the lower-cased name of the user
+     * @param snapshot the user's snapshot
+     */
+    private void index(String userName, PermissionSnapshot snapshot) {
+        for (String groupName : snapshot.getGroups()) {
+            dependents.computeIfAbsent(groupName, name -> ConcurrentHashMap.newKeySet()).add(userName);
+        }
+    }
+
+    /**
+     * Discards all snapshots.
+     */
+    public void invalidateAll() {
+        snapshots.clear();
+        dependents.clear();
+    }
+
+    /**
+     * Flattens a user's permissions into a new snapshot in a single walk.
+     * Temporary user permissions come first, then permanent user permissions,
+     * then each group from the highest priority down, followed by the groups it
+     * inherits from. Every node holds one value, and the first value set for a node wins.
+     *
+     * @param user the user to resolve
+     * @return the resolved snapshot
+     */
+    private PermissionSnapshot resolve(User user) {
+        long now = System.currentTimeMillis();
+        Map<String, Boolean> resolved = new HashMap<>();
+        PermissionTree tree = new PermissionTree();
+        Set<String> dependencies = new HashSet<>();
+
+        Map<String, Long> temporaryPermissions = user.getTemporaryPermissions();
+        apply(resolved, tree, temporaryPermissions.keySet());
+        apply(resolved, tree, user.getPermanentPermissions());
+
+        for (String groupName : getGroupsByPriority(user)) {
+            applyGroup(groupName, resolved, tree, dependencies);
+        }
+
+        long expiresAt = Long.MAX_VALUE;
+        expiresAt = Math.min(expiresAt, nextExpiry(temporaryPermissions.values(), now));
+        expiresAt = Math.min(expiresAt, nextExpiry(user.getTemporaryGroups().values(), now));
+
+        return new PermissionSnapshot(user.getName().toLowerCase(), resolved, tree, dependencies, expiresAt);
+    }
+
+    /**
+     * Orders a user's groups from the highest priority down, breaking ties by name
+     * so the result does not depend on the order the groups were added in.
+     *
+     * @param user the user whose groups to order
+     * @return the lower-cased group names in resolution order
+     */
+    private List<String> getGroupsByPriority(User user) {
+        List<String> groupNames = new ArrayList<>();
+        for (String groupName : user.getGroups()) {
+            groupNames.add(groupName.toLowerCase());
+        }
+        groupNames.sort(Comparator.comparingInt(this::getPriority).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        return groupNames;
+    }
+
+    /**
+     * Gets the priority of a group without creating it.
+     *
+     * @param groupName the lower-cased group name
+     * @return the group's priority, or 0 if it does not exist
+     */
+    private int getPriority(String groupName) {
+        return world.hasGroup(groupName) ? world.getGroup(groupName).getPriority() : 0;
+    }
+
+    /**
+     * Applies the permissions of a group and then of all groups it inherits from,
+     * taken from the world's inheritance closure. A group reached a second time has
+     * nothing left to contribute and is skipped.
+     *
+     * @param groupName the lower-cased group name
+     * @param resolved the map of already resolved values
+     * @param tree the tree of already resolved values
+     * @param dependencies the set of groups already applied
+     */
+    private void applyGroup(String groupName, Map<String, Boolean> resolved, PermissionTree tree,
+                            Set<String> dependencies) {
+        // Everything a group inherits was applied along with it
+        if (!dependencies.add(groupName)) {
+            return;
+        }
+
+        applyPermissions(groupName, resolved, tree);
+        for (String ancestor : world.getInheritedGroups(groupName)) {
+            if (dependencies.add(ancestor)) {
+                applyPermissions(ancestor, resolved, tree);
+            }
+        }
+    }
+
+    /**
+     * Applies the permissions of a single group, if it exists. Missing groups are still
+     * recorded as dependencies, so creating them later invalidates the snapshot.
+     *
+     * @param groupName the lower-cased group name
+     * @param resolved the map of already resolved values
+     * @param tree the tree of already resolved values
+     */
+    private void applyPermissions(String groupName, Map<String, Boolean> resolved, PermissionTree tree) {
+        if (world.hasGroup(groupName)) {
+            Group group = world.getGroup(groupName);
+            apply(resolved, tree, group.getPermissions());
+        }
+    }
+
+    /**
+     * Applies raw permission nodes to the resolved values. Nodes that already
+     * have a value keep it.
+     *
+     * @param resolved the map of already resolved values
+     * @param tree the tree of already resolved values
+     * @param permissions the raw permission nodes, negated nodes starting with "-"
+     */
+    private void apply(Map<String, Boolean> resolved, PermissionTree tree, Collection<String> permissions) {
+        for (String permission : permissions) {
+            boolean negated = permission.startsWith("-");
+            String node = negated ? permission.substring(1) : permission;
+            if (tree.setIfAbsent(node, !negated)) {
+                resolved.put(node.toLowerCase(), !negated);
+            }
+        }
+    }
+
+    /**
+     * Finds the earliest expiration time that is still in the future.
+     *
+     * @param expirations the expiration timestamps
+     * @param now the current time in milliseconds
+     * @return the earliest future expiration, or Long.MAX_VALUE
+     */
+    private long nextExpiry(Collection<Long> expirations, long now) {
+        long next = Long.MAX_VALUE;
+        for (long expiration : expirations) {
+            if (expiration > now && expiration < next) {
+                next = expiration;
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,155 @@
+package org.frizzlenpop.frizzlenRanks.permission;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A compact set of raw permission nodes stored as a sorted array of interned node IDs.
+ * The set holds one value per node: adding "node" drops "-node" and the other way round.
+ * Iteration returns the interned lower-cased node names, and lookups are case-insensitive.
+ *
+ * <p>Changes replace the array instead of shifting it in place, so a set changed by one
+ * thread can be read and iterated by others without locking; they see the set as it was
+ * before or after each change, never in between.</p>
+ */
+public final class PermissionSet extends AbstractSet<String> {
+    private static final int[] EMPTY = new int[0];
+
+    private volatile int[] ids = EMPTY;
+
+    /**
+     * Adds a raw permission node, replacing its opposite form.
+     *
+     * @param permission the raw permission node, in any case
+     * @return true if the set changed
+     */
+    @Override
+    public boolean add(String permission) {
+        boolean changed = remove(PermissionTree.opposite(permission));
+
+        int id = PermissionNodes.intern(permission);
+        int[] current = ids;
+        int index = Arrays.binarySearch(current, id);
+        if (index >= 0) {
+            return changed;
+        }
+
+        index = -index - 1;
+        int[] updated = new int[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        updated[index] = id;
+        System.arraycopy(current, index, updated, index + 1, current.length - index);
+        ids = updated;
+        return true;
+    }
+
+    /**
+     * Removes a raw permission node.
+     *
+     * @param permission the raw permission node, in any case
+     * @return true if the set changed
+     */
+    @Override
+    public boolean remove(Object permission) {
+        int[] current = ids;
+        int index = indexOf(current, permission);
+        if (index < 0) {
+            return false;
+        }
+
+        removeAt(current, index);
+        return true;
+    }
+
+    /**
+     * Replaces the ID array with a copy that lacks one position.
+     *
+     * @param current the array the position was found in
+     * @param index the position to drop
+     */
+    private void removeAt(int[] current, int index) {
+        int[] updated = new int[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        ids = updated;
+    }
+
+    /**
+     * Checks if the set contains a raw permission node.
+     *
+     * @param permission the raw permission node, in any case
+     * @return true if the node is in the set
+     */
+    @Override
+    public boolean contains(Object permission) {
+        return indexOf(ids, permission) >= 0;
+    }
+
+    @Override
+    public void clear() {
+        ids = EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Iterates over the set as it was when the iterator was created.
+     *
+     * @return an iterator over the interned node names
+     */
+    @Override
+    public Iterator<String> iterator() {
+        int[] snapshot = ids;
+        return new Iterator<String>() {
+            private int index;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return index < snapshot.length;
+            }
+
+            @Override
+            public String next() {
+                if (index >= snapshot.length) {
+                    throw new NoSuchElementException();
+                }
+                last = snapshot[index++];
+                return PermissionNodes.name(last);
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                int[] current = ids;
+                int position = Arrays.binarySearch(current, last);
+                if (position >= 0) {
+                    removeAt(current, position);
+                }
+                last = -1;
+            }
+        };
+    }
+
+    /**
+     * Finds the position of a node in an ID array.
+     *
+     * @param current the ID array to search
+     * @param permission the raw permission node
+     * @return the index, or a negative value if absent
+     */
+    private static int indexOf(int[] current, Object permission) {
+        if (!(permission instanceof String)) {
+            return -1;
+        }
+        int id = PermissionNodes.find((String) permission);
+        return id < 0 ? -1 : Arrays.binarySearch(current, id);
+    }
+}
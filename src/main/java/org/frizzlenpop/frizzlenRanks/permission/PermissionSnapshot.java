@@ -0,0 +1,158 @@
+package org.frizzlenpop.frizzlenRanks.permission;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, flattened view of a user's effective permissions in one world.
+ * Direct user permissions, group permissions and inherited permissions are
+ * resolved once when the snapshot is built into a single permission tree, so a
+ * check is one descent that also honours wildcard grants.
+ */
+public final class PermissionSnapshot {
+    private final String userName;
+    private final Map<String, Boolean> permissions;
+    private final PermissionTree tree;
+    private final Set<String> groups;
+    private final long expiresAt;
+    // Whether any resolved node is a wildcard, which Bukkit needs spelled out
+    private final boolean wildcards;
+
+    /**
+     * Creates a new PermissionSnapshot.
+     *
+     * @param userName the lower-cased name of the user this snapshot belongs to
+     * @param permissions the resolved permission values, keyed by lower-cased node
+     * @param tree the compiled tree of the resolved values
+     * @param groups every group the snapshot was resolved from, including inherited groups
+     * @param expiresAt the time at which a temporary entry lapses, or Long.MAX_VALUE
+     */
+    PermissionSnapshot(String userName, Map<String, Boolean> permissions, PermissionTree tree,
+                       Set<String> groups, long expiresAt) {
+        this.userName = userName;
+        this.permissions = Collections.unmodifiableMap(permissions);
+        this.tree = tree;
+        this.groups = Collections.unmodifiableSet(groups);
+        this.expiresAt = expiresAt;
+        this.wildcards = hasWildcard(permissions.keySet());
+    }
+
+    /**
+     * Checks if any of the nodes is a "*" or "a.b.*" wildcard.
+     *
+     * @param nodes the lower-cased nodes
+     * @return true if a node is a wildcard
+     */
+    private static boolean hasWildcard(Collection<String> nodes) {
+        for (String node : nodes) {
+            if (node.equals("*") || node.endsWith(".*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the name of the user this snapshot belongs to.
+     *
+     * @return the lower-cased user name
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Checks if the snapshot grants a permission.
+     *
+     * @param permission the permission to check
+     * @return true if the permission resolved to granted
+     */
+    public boolean hasPermission(String permission) {
+        return tree.hasPermission(permission);
+    }
+
+    /**
+     * Gets the tri-state value of a permission.
+     *
+     * @param permission the permission to look up
+     * @return PermissionTree.ALLOW, DENY or UNSET
+     */
+    public byte lookup(String permission) {
+        return tree.lookup(permission);
+    }
+
+    /**
+     * Checks if any resolved node is a "*" or "a.b.*" wildcard.
+     *
+     * @return true if {@link #expand(Collection)} has permissions to add
+     */
+    public boolean hasWildcards() {
+        return wildcards;
+    }
+
+    /**
+     * Gets all explicitly resolved permission values.
+     * Negated nodes are stored under their plain name with a value of false.
+     *
+     * @return an unmodifiable map of permission values
+     */
+    public Map<String, Boolean> getPermissions() {
+        return permissions;
+    }
+
+    /**
+     * Expands the snapshot into the values to set on a Bukkit permission attachment.
+     * Bukkit does not understand wildcards, so every known permission that a
+     * wildcard in this snapshot covers is listed explicitly. A snapshot without
+     * wildcards is returned as it is.
+     *
+     * @param knownPermissions the names of the permissions registered on the server
+     * @return the permission values for the attachment
+     */
+    public Map<String, Boolean> expand(Collection<String> knownPermissions) {
+        if (!wildcards) {
+            return permissions;
+        }
+
+        Map<String, Boolean> expanded = new HashMap<>(permissions);
+        for (String known : knownPermissions) {
+            byte value = tree.lookup(known);
+            if (value != PermissionTree.UNSET) {
+                expanded.putIfAbsent(known.toLowerCase(), value == PermissionTree.ALLOW);
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Gets the groups this snapshot was resolved from.
+     *
+     * @return the lower-cased group names, including inherited groups
+     */
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Checks if this snapshot was resolved from the specified group.
+     *
+     * @param group the lower-cased group name
+     * @return true if a change to the group affects this snapshot
+     */
+    public boolean dependsOn(String group) {
+        return groups.contains(group);
+    }
+
+    /**
+     * Checks if a temporary permission or group in this snapshot has lapsed.
+     *
+     * @param now the current time in milliseconds
+     * @return true if the snapshot must be rebuilt
+     */
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+}
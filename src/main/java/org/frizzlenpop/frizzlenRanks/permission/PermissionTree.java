@@ -0,0 +1,227 @@
+package org.frizzlenpop.frizzlenRanks.permission;
+
+import java.util.Collection;
+
+/**
+ * A compiled permission tree keyed on the dot-separated segments of permission nodes.
+ * Exact nodes, "*" and "a.b.*" wildcards are all answered in a single descent,
+ * so the cost of a lookup depends on the depth of the node rather than on how
+ * many permissions were compiled into the tree. The most specific match wins.
+ */
+public final class PermissionTree {
+    public static final byte UNSET = 0;
+    public static final byte ALLOW = 1;
+    public static final byte DENY = -1;
+
+    private final Node root = new Node();
+
+    /**
+     * Compiles raw permission nodes into a tree.
+     * Negated nodes start with "-". If a node appears both granted and negated,
+     * the one that comes first wins.
+     *
+     * @param permissions the raw permission nodes
+     * @return the compiled tree
+     */
+    public static PermissionTree compile(Collection<String> permissions) {
+        PermissionTree tree = new PermissionTree();
+        for (String permission : permissions) {
+            if (permission.startsWith("-")) {
+                tree.setIfAbsent(permission.substring(1), false);
+            } else {
+                tree.setIfAbsent(permission, true);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Gets the opposite form of a raw permission node, so "node" becomes "-node"
+     * and "-node" becomes "node". Holders use this to keep one value per node.
+     *
+     * @param permission the raw permission node
+     * @return the opposite raw permission node
+     */
+    public static String opposite(String permission) {
+        return permission.startsWith("-") ? permission.substring(1) : "-" + permission;
+    }
+
+    /**
+     * Sets the value of a node unless it already has one.
+     * A node ending in "*" sets the wildcard value for everything below its parent.
+     *
+     * @param permission the permission node, without a leading "-"
+     * @param value true to grant, false to deny
+     * @return true if the value was set
+     */
+    public boolean setIfAbsent(String permission, boolean value) {
+        String lowerPermission = permission.toLowerCase();
+        byte state = value ? ALLOW : DENY;
+
+        Node node = root;
+        int start = 0;
+        int length = lowerPermission.length();
+        while (true) {
+            int end = lowerPermission.indexOf('.', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            if (end == length && end - start == 1 && lowerPermission.charAt(start) == '*') {
+                if (node.wildcard != UNSET) {
+                    return false;
+                }
+                node.wildcard = state;
+                return true;
+            }
+
+            node = node.getOrCreateChild(lowerPermission.substring(start, end));
+            if (end == length) {
+                if (node.value != UNSET) {
+                    return false;
+                }
+                node.value = state;
+                return true;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Looks up the tri-state value of a permission.
+     * The lookup is case-insensitive and does not allocate.
+     *
+     * @param permission the permission to look up
+     * @return ALLOW, DENY or UNSET
+     */
+    public byte lookup(String permission) {
+        Node node = root;
+        byte result = UNSET;
+        int start = 0;
+        int length = permission.length();
+        while (true) {
+            // A wildcard on this node covers everything below it
+            if (node.wildcard != UNSET) {
+                result = node.wildcard;
+            }
+
+            int end = permission.indexOf('.', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            // A query for "a.b.*" itself is answered by the wildcard on "a.b"
+            if (end == length && end - start == 1 && permission.charAt(start) == '*') {
+                return result;
+            }
+
+            Node child = node.getChild(permission, start, end);
+            if (child == null) {
+                return result;
+            }
+            if (end == length) {
+                return child.value != UNSET ? child.value : result;
+            }
+            node = child;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Checks if the tree grants a permission.
+     *
+     * @param permission the permission to check
+     * @return true if the permission resolves to granted
+     */
+    public boolean hasPermission(String permission) {
+        return lookup(permission) == ALLOW;
+    }
+
+    /**
+     * A segment of the tree with an open-addressed table of child segments.
+     */
+    private static final class Node {
+        private byte value;
+        private byte wildcard;
+        private String[] keys;
+        private int[] hashes;
+        private Node[] children;
+        private int size;
+
+        /**
+         * Finds the child for a region of a permission string without allocating.
+         */
+        private Node getChild(String permission, int start, int end) {
+            if (keys == null) {
+                return null;
+            }
+
+            // Same hash as String.hashCode of the lower-cased segment
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + Character.toLowerCase(permission.charAt(i));
+            }
+
+            int mask = keys.length - 1;
+            int length = end - start;
+            for (int index = spread(hash) & mask; keys[index] != null; index = (index + 1) & mask) {
+                String key = keys[index];
+                if (hashes[index] == hash && key.length() == length
+                        && key.regionMatches(true, 0, permission, start, length)) {
+                    return children[index];
+                }
+            }
+            return null;
+        }
+
+        private Node getOrCreateChild(String key) {
+            Node child = getChild(key, 0, key.length());
+            if (child != null) {
+                return child;
+            }
+
+            if (keys == null) {
+                keys = new String[4];
+                hashes = new int[4];
+                children = new Node[4];
+            } else if ((size + 1) * 4 > keys.length * 3) {
+                resize();
+            }
+
+            child = new Node();
+            insert(key, key.hashCode(), child);
+            size++;
+            return child;
+        }
+
+        private void insert(String key, int hash, Node child) {
+            int mask = keys.length - 1;
+            int index = spread(hash) & mask;
+            while (keys[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            hashes[index] = hash;
+            children[index] = child;
+        }
+
+        private void resize() {
+            String[] oldKeys = keys;
+            int[] oldHashes = hashes;
+            Node[] oldChildren = children;
+
+            keys = new String[oldKeys.length * 2];
+            hashes = new int[oldKeys.length * 2];
+            children = new Node[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    insert(oldKeys[i], oldHashes[i], oldChildren[i]);
+                }
+            }
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.frizzlenpop.frizzlenRanks.tab;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
+import org.frizzlenpop.frizzlenRanks.model.World;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Spreads tab display updates for many players over several ticks.
+ * Requests for the same player are merged, so each player is updated once per batch,
+ * and each tick only updates players until its time budget is used up. When the batch
+ * is done, the number of players and the time spent are logged.
+ * Used on the main thread only.
+ */
+public class TabUpdateQueue {
+    private final FrizzlenRanks plugin;
+
+    // Names of the players waiting for an update, in request order
+    private final Set<String> pending;
+    private BukkitTask task;
+
+    // Progress of the running batch
+    private int batchPlayers;
+    private int batchTicks;
+    private long batchNanos;
+
+    /**
+     * Creates a new tab update queue.
+     *
+     * @param plugin the plugin instance
+     */
+    public TabUpdateQueue(FrizzlenRanks plugin) {
+        this.plugin = plugin;
+        this.pending = new LinkedHashSet<>();
+    }
+
+    /**
+     * Queues a tab display update for a player.
+     *
+     * @param player the player to update
+     */
+    public void request(Player player) {
+        pending.add(player.getName());
+        schedule();
+    }
+
+    /**
+     * Queues a tab display update for every online player in a group.
+     * Only the group's members are looked at, not every online player.
+     *
+     * @param world the world the group belongs to
+     * @param groupName the name of the group that changed
+     * @return the number of players queued
+     */
+    public int requestGroup(World world, String groupName) {
+        int queued = 0;
+        for (String userName : world.getMembers(groupName)) {
+            Player player = Bukkit.getPlayerExact(userName);
+            if (player != null && plugin.getDataManager().getWorld(player.getWorld().getName()) == world) {
+                pending.add(player.getName());
+                queued++;
+            }
+        }
+        schedule();
+        return queued;
+    }
+
+    /**
+     * Queues a tab display update for every online player.
+     */
+    public void requestAll() {
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            pending.add(player.getName());
+        }
+        schedule();
+    }
+
+    /**
+     * Starts the batch task unless it is already running.
+     */
+    private void schedule() {
+        if (task != null || pending.isEmpty()) {
+            return;
+        }
+        batchPlayers = 0;
+        batchTicks = 0;
+        batchNanos = 0;
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+    }
+
+    /**
+     * Updates queued players until this tick's budget is used up.
+     * At least one player is updated per tick, so the batch always finishes.
+     */
+    private void tick() {
+        long budget = plugin.getConfigManager().getTabUpdateBudget() * 1_000_000L;
+        long start = System.nanoTime();
+
+        Iterator<String> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            String playerName = iterator.next();
+            iterator.remove();
+
+            Player player = Bukkit.getPlayerExact(playerName);
+            if (player != null && player.isOnline()) {
+                try {
+                    plugin.getTeamManager().updateDisplay(player);
+                } catch (Exception e) {
+                    // Catch any errors to prevent tab display issues from breaking the plugin
+                    plugin.getLogger().warning("Error updating tab display for " + playerName + ": " + e.getMessage());
+                }
+                batchPlayers++;
+            }
+
+            if (System.nanoTime() - start >= budget) {
+                break;
+            }
+        }
+
+        batchNanos += System.nanoTime() - start;
+        batchTicks++;
+        if (pending.isEmpty()) {
+            task.cancel();
+            task = null;
+            if (batchPlayers > 1) {
+                plugin.getLogger().info(String.format("Updated the tab display of %d players in %.1f ms over %d ticks",
+                        batchPlayers, batchNanos / 1_000_000.0, batchTicks));
+            }
+        }
+    }
+}
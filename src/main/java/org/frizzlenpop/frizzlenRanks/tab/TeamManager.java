@@ -0,0 +1,239 @@
+package org.frizzlenpop.frizzlenRanks.tab;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Player;
+import org.bukkit.scoreboard.Scoreboard;
+import org.bukkit.scoreboard.Team;
+import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
+import org.frizzlenpop.frizzlenRanks.model.Group;
+import org.frizzlenpop.frizzlenRanks.model.User;
+import org.frizzlenpop.frizzlenRanks.model.UserDisplay;
+import org.frizzlenpop.frizzlenRanks.model.World;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps online players in scoreboard teams that sort the tab list by rank.
+ * Teams are named after the priority and name of a player's highest priority group,
+ * and the team and display of every player are remembered, so the scoreboard is only
+ * touched when a player's rank or prefix actually changes. A player moved by another
+ * plugin is noticed with a single {@link Scoreboard#getEntryTeam(String)} lookup.
+ */
+public class TeamManager {
+    private static final String TEAM_PREFIX = "FR_";
+    private static final int MAX_TEAM_NAME_LENGTH = 16;
+
+    private final FrizzlenRanks plugin;
+
+    // The team each online player was put in, keyed by scoreboard entry (the player's name)
+    private final Map<String, Assignment> assignments;
+
+    /**
+     * Creates a new team manager.
+     *
+     * @param plugin the plugin instance
+     */
+    public TeamManager(FrizzlenRanks plugin) {
+        this.plugin = plugin;
+        this.assignments = new HashMap<>();
+    }
+
+    /**
+     * Sets a player's tab and display name from their prefix and suffix, then puts them
+     * in the team for their rank. Names that did not change are not set again.
+     *
+     * @param player the player to update
+     */
+    public void updateDisplay(Player player) {
+        UserDisplay display = plugin.getChatHook().getPlayerDisplay(player.getWorld().getName(), player.getName());
+        String displayName = display.getColoredPrefix() + player.getName() + display.getColoredSuffix();
+        if (!displayName.equals(player.getPlayerListName())) {
+            player.setPlayerListName(displayName);
+        }
+        if (!displayName.equals(player.getDisplayName())) {
+            player.setDisplayName(displayName);
+        }
+        update(player);
+    }
+
+    /**
+     * Puts a player in the team for their current rank and display, unless they are in it already.
+     *
+     * @param player the player to update
+     * @return true if the scoreboard was changed
+     */
+    public boolean update(Player player) {
+        String worldName = player.getWorld().getName();
+        String entry = player.getName();
+        World world = plugin.getDataManager().getWorld(worldName);
+        User user = world.getUser(entry);
+
+        // Find the highest priority group
+        int maxPriority = Integer.MIN_VALUE;
+        String highestGroup = "default";
+        for (String groupName : user.getGroups()) {
+            if (world.hasGroup(groupName)) {
+                Group group = world.getGroup(groupName);
+                if (group.getPriority() > maxPriority) {
+                    maxPriority = group.getPriority();
+                    highestGroup = groupName;
+                }
+            }
+        }
+
+        UserDisplay display = plugin.getChatHook().getPlayerDisplay(worldName, entry);
+        String teamName = getTeamName(maxPriority, highestGroup);
+        String prefix = display.getColoredPrefix();
+        String suffix = display.getColoredSuffix();
+
+        Scoreboard scoreboard = Bukkit.getScoreboardManager().getMainScoreboard();
+        Assignment current = assignments.get(entry);
+        if (current != null && current.matches(teamName, prefix, suffix) && isInTeam(scoreboard, entry, teamName)) {
+            return false;
+        }
+
+        Team team = scoreboard.getTeam(teamName);
+        if (team == null) {
+            team = scoreboard.registerNewTeam(teamName);
+        }
+        if (!prefix.equals(team.getPrefix())) {
+            team.setPrefix(prefix);
+            team.setColor(getColor(prefix));
+        }
+        if (!suffix.equals(team.getSuffix())) {
+            team.setSuffix(suffix);
+        }
+
+        // Adding an entry takes it out of its previous team
+        if (!team.hasEntry(entry)) {
+            team.addEntry(entry);
+        }
+        assignments.put(entry, new Assignment(teamName, prefix, suffix));
+        if (current != null && !current.teamName.equals(teamName)) {
+            unregisterIfEmpty(scoreboard, current.teamName);
+        }
+        return true;
+    }
+
+    /**
+     * Puts back every online player that another plugin took out of their team.
+     * Costs one team lookup per player when nothing was changed.
+     *
+     * @return the number of players put back
+     */
+    public int verifyAll() {
+        Scoreboard scoreboard = Bukkit.getScoreboardManager().getMainScoreboard();
+        int restored = 0;
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            Assignment current = assignments.get(player.getName());
+            if (current != null && isInTeam(scoreboard, player.getName(), current.teamName)) {
+                continue;
+            }
+
+            try {
+                if (update(player)) {
+                    restored++;
+                }
+            } catch (Exception e) {
+                plugin.getLogger().warning("Error ensuring tab sorting for " + player.getName() + ": " + e.getMessage());
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Takes a leaving player out of their team, and removes the team once nobody is left in it.
+     *
+     * @param player the player that left
+     */
+    public void remove(Player player) {
+        String entry = player.getName();
+        Assignment current = assignments.remove(entry);
+        if (current == null) {
+            return;
+        }
+
+        Scoreboard scoreboard = Bukkit.getScoreboardManager().getMainScoreboard();
+        Team team = scoreboard.getTeam(current.teamName);
+        if (team != null && team.hasEntry(entry)) {
+            team.removeEntry(entry);
+        }
+        unregisterIfEmpty(scoreboard, current.teamName);
+    }
+
+    /**
+     * Checks if an entry is still in the given team.
+     *
+     * @param scoreboard the scoreboard
+     * @param entry the scoreboard entry
+     * @param teamName the name of the team
+     * @return true if the entry is in the team
+     */
+    private boolean isInTeam(Scoreboard scoreboard, String entry, String teamName) {
+        Team team = scoreboard.getEntryTeam(entry);
+        return team != null && team.getName().equals(teamName);
+    }
+
+    /**
+     * Unregisters one of our teams once it has no entries left.
+     *
+     * @param scoreboard the scoreboard
+     * @param teamName the name of the team
+     */
+    private void unregisterIfEmpty(Scoreboard scoreboard, String teamName) {
+        Team team = scoreboard.getTeam(teamName);
+        if (team != null && team.getEntries().isEmpty()) {
+            team.unregister();
+        }
+    }
+
+    /**
+     * Builds the name of the team for a rank. Higher priorities get lower numbers,
+     * so they sort first in the tab list.
+     *
+     * @param priority the priority of the player's highest group
+     * @param groupName the name of that group
+     * @return the team name, at most 16 characters long
+     */
+    private static String getTeamName(int priority, String groupName) {
+        String teamName = TEAM_PREFIX + String.format("%04d", 9999 - priority) + "_" + groupName;
+        return teamName.length() > MAX_TEAM_NAME_LENGTH ? teamName.substring(0, MAX_TEAM_NAME_LENGTH) : teamName;
+    }
+
+    /**
+     * Gets the team color from the first color code of a prefix.
+     *
+     * @param prefix the prefix, with color codes translated
+     * @return the color, or white if the prefix does not start with one
+     */
+    private static ChatColor getColor(String prefix) {
+        if (prefix.length() > 1 && prefix.charAt(0) == '§') {
+            ChatColor color = ChatColor.getByChar(prefix.charAt(1));
+            if (color != null && color.isColor()) {
+                return color;
+            }
+        }
+        return ChatColor.WHITE;
+    }
+
+    /**
+     * The team a player was put in and the display it was given.
+     */
+    private static final class Assignment {
+        private final String teamName;
+        private final String prefix;
+        private final String suffix;
+
+        private Assignment(String teamName, String prefix, String suffix) {
+            this.teamName = teamName;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        private boolean matches(String teamName, String prefix, String suffix) {
+            return this.teamName.equals(teamName) && this.prefix.equals(prefix) && this.suffix.equals(suffix);
+        }
+    }
+}
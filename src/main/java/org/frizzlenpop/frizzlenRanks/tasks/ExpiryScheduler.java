@@ -0,0 +1,172 @@
+package org.frizzlenpop.frizzlenRanks.tasks;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
+import org.frizzlenpop.frizzlenRanks.model.User;
+import org.frizzlenpop.frizzlenRanks.model.World;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Removes temporary permissions and groups when they expire.
+ * Users are kept in a queue ordered by the time their next entry expires, and a
+ * single task is scheduled for the tick the earliest one lapses. Only the users
+ * whose entries expired are touched, so the cost follows the number of expiries
+ * rather than the number of users.
+ */
+public class ExpiryScheduler {
+    private static final long MILLIS_PER_TICK = 50L;
+
+    private final FrizzlenRanks plugin;
+    private final PriorityQueue<Expiry> queue;
+
+    // The earliest queued expiry of each user, keyed by world and user, so later duplicates are not queued
+    private final Map<String, Long> queued;
+
+    // The pending task and the time it was scheduled for
+    private BukkitTask task;
+    private long taskTime;
+
+    /**
+     * Creates a new expiry scheduler.
+     *
+     * @param plugin the plugin instance
+     */
+    public ExpiryScheduler(FrizzlenRanks plugin) {
+        this.plugin = plugin;
+        this.queue = new PriorityQueue<>();
+        this.queued = new HashMap<>();
+    }
+
+    /**
+     * Schedules a check of a user for when one of its temporary entries expires.
+     * Safe to call from any thread.
+     *
+     * @param worldName the lower-cased name of the world
+     * @param userName the lower-cased name of the user
+     * @param expirationTime the expiration timestamp in milliseconds
+     */
+    public synchronized void schedule(String worldName, String userName, long expirationTime) {
+        String key = worldName + ":" + userName;
+        Long existing = queued.get(key);
+        if (existing != null && existing <= expirationTime) {
+            // An earlier check will reschedule the user for its remaining entries
+            return;
+        }
+
+        queued.put(key, expirationTime);
+        queue.add(new Expiry(expirationTime, worldName, userName));
+        arm();
+    }
+
+    /**
+     * Forgets all scheduled expiries, used before data is reloaded.
+     */
+    public synchronized void clear() {
+        queue.clear();
+        queued.clear();
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * Makes sure a task is scheduled for the earliest queued expiry.
+     */
+    private void arm() {
+        Expiry next = queue.peek();
+        if (next == null || (task != null && taskTime <= next.time)) {
+            return;
+        }
+
+        if (task != null) {
+            task.cancel();
+        }
+        long delay = Math.max(1L, (next.time - System.currentTimeMillis() + MILLIS_PER_TICK - 1) / MILLIS_PER_TICK);
+        task = Bukkit.getScheduler().runTaskLater(plugin, this::run, delay);
+        taskTime = next.time;
+    }
+
+    /**
+     * Removes the expired entries of every user whose expiry has passed.
+     */
+    private void run() {
+        long now = System.currentTimeMillis();
+        List<Expiry> due = new ArrayList<>();
+        synchronized (this) {
+            task = null;
+            while (!queue.isEmpty() && queue.peek().time <= now) {
+                Expiry expiry = queue.poll();
+                queued.remove(expiry.worldName + ":" + expiry.userName, expiry.time);
+                due.add(expiry);
+            }
+        }
+
+        for (Expiry expiry : due) {
+            expire(expiry.worldName, expiry.userName, now);
+        }
+
+        synchronized (this) {
+            arm();
+        }
+    }
+
+    /**
+     * Removes a user's expired entries and schedules its next expiry.
+     *
+     * @param worldName the lower-cased name of the world
+     * @param userName the lower-cased name of the user
+     * @param now the current time in milliseconds
+     */
+    private void expire(String worldName, String userName, long now) {
+        World world = plugin.getDataManager().getWorld(worldName);
+        if (!world.hasUser(userName)) {
+            return;
+        }
+
+        User user = world.getUser(userName);
+        List<String> removed = user.removeExpired(now);
+        if (!removed.isEmpty()) {
+            plugin.getLogger().info("Removed expired " + String.join(", ", removed) + " from " + userName);
+            if (plugin.getConfigManager().autoSave()) {
+                plugin.getDataManager().saveWorld(world);
+            }
+        }
+
+        // Entries may also have been dropped while reading them, so refresh an online player either way
+        if (Bukkit.getPlayerExact(userName) != null) {
+            plugin.getRefreshQueue().request(userName);
+        }
+
+        long nextExpiry = user.getNextExpiry();
+        if (nextExpiry > 0) {
+            schedule(worldName, userName, nextExpiry);
+        }
+    }
+
+    /**
+     * A user to check at a given time.
+     */
+    private static final class Expiry implements Comparable<Expiry> {
+        private final long time;
+        private final String worldName;
+        private final String userName;
+
+        private Expiry(long time, String worldName, String userName) {
+            this.time = time;
+            this.worldName = worldName;
+            this.userName = userName;
+        }
+
+        @Override
+        public int compareTo(Expiry other) {
+            return Long.compare(time, other.time);
+        }
+    }
+}
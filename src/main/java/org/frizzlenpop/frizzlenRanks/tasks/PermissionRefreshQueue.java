@@ -0,0 +1,99 @@
+package org.frizzlenpop.frizzlenRanks.tasks;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
+import org.frizzlenpop.frizzlenRanks.model.World;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Collects permission refresh requests and applies them in one batch.
+ * Requests for the same player are merged, so a player is refreshed at most
+ * once per batch no matter how many changes or listeners asked for it.
+ */
+public class PermissionRefreshQueue {
+    private final FrizzlenRanks plugin;
+    // Lower-cased names of the players waiting for a refresh
+    private Set<String> pending;
+    private boolean scheduled;
+
+    /**
+     * Creates a new refresh queue.
+     *
+     * @param plugin the plugin instance
+     */
+    public PermissionRefreshQueue(FrizzlenRanks plugin) {
+        this.plugin = plugin;
+        this.pending = new LinkedHashSet<>();
+    }
+
+    /**
+     * Queues a permission refresh for a player.
+     *
+     * @param playerName the name of the player
+     */
+    public synchronized void request(String playerName) {
+        pending.add(playerName.toLowerCase());
+        schedule();
+    }
+
+    /**
+     * Queues a refresh for every online player whose permissions depend on a group,
+     * directly or through inheritance. Only the members of the group and of the
+     * groups inheriting from it are looked at, not every online player.
+     *
+     * @param world the world the group belongs to
+     * @param groupName the name of the group that changed
+     */
+    public synchronized void requestGroup(World world, String groupName) {
+        for (String userName : world.getAffectedUsers(groupName)) {
+            Player player = Bukkit.getPlayerExact(userName);
+            if (player != null && plugin.getDataManager().getWorld(player.getWorld().getName()) == world) {
+                pending.add(userName);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Queues a permission refresh for every online player.
+     */
+    public synchronized void requestAll() {
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            pending.add(player.getName().toLowerCase());
+        }
+        schedule();
+    }
+
+    /**
+     * Schedules the batch for the next tick unless it is already scheduled.
+     */
+    private void schedule() {
+        if (scheduled || pending.isEmpty()) {
+            return;
+        }
+        scheduled = true;
+        Bukkit.getScheduler().runTask(plugin, this::flush);
+    }
+
+    /**
+     * Applies all queued refreshes.
+     */
+    private void flush() {
+        Set<String> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new LinkedHashSet<>();
+            scheduled = false;
+        }
+
+        for (String playerName : batch) {
+            Player player = Bukkit.getPlayerExact(playerName);
+            if (player != null && player.isOnline()) {
+                plugin.applyPlayerPermissions(player);
+            }
+        }
+    }
+}
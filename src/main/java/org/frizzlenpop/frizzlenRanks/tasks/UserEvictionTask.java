@@ -0,0 +1,29 @@
+package org.frizzlenpop.frizzlenRanks.tasks;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
+
+/**
+ * Task that periodically unloads offline users that have not been used for a while,
+ * so memory grows with the number of online players rather than with every player ever seen.
+ */
+public class UserEvictionTask extends BukkitRunnable {
+    private final FrizzlenRanks plugin;
+
+    /**
+     * Creates a new eviction task.
+     *
+     * @param plugin the plugin instance
+     */
+    public UserEvictionTask(FrizzlenRanks plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void run() {
+        int evicted = plugin.getDataManager().evictIdleUsers();
+        if (evicted > 0) {
+            plugin.getLogger().fine("Unloaded " + evicted + " idle offline users");
+        }
+    }
+}
@@ -2,14 +2,19 @@ package org.frizzlenpop.frizzlenRanks.vault;
 
 import net.milkbowl.vault.chat.Chat;
 import net.milkbowl.vault.permission.Permission;
+import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.frizzlenpop.frizzlenRanks.FrizzlenRanks;
 import org.frizzlenpop.frizzlenRanks.model.Group;
 import org.frizzlenpop.frizzlenRanks.model.User;
+import org.frizzlenpop.frizzlenRanks.model.UserDisplay;
 import org.frizzlenpop.frizzlenRanks.model.World;
 
 /**
  * Provides integration with Vault's chat API.
+ * Changes requested off the main thread are applied on the next tick. Reads off the
+ * main thread only see worlds and users already in memory and never take a lock;
+ * a player that is not loaded has an empty prefix and suffix there.
  */
 public class VaultChatHook extends Chat {
     private final FrizzlenRanks plugin;
@@ -34,33 +39,37 @@ public class VaultChatHook extends Chat {
         return plugin.isEnabled();
     }
     
+    /**
+     * Gets the cached prefix and suffix of a player.
+     * The player's own prefix and suffix win over those of the highest priority group.
+     * 
+     * @param worldName the name of the world
+     * @param playerName the name of the player
+     * @return the player's display
+     */
+    public UserDisplay getPlayerDisplay(String worldName, String playerName) {
+        if (!Bukkit.isPrimaryThread()) {
+            return getLoadedPlayerDisplay(worldName, playerName);
+        }
+        return getWorld(worldName).getDisplay(playerName);
+    }
+    
+    /**
+     * Gets the cached prefix and suffix of an online player without loading anything,
+     * for async callers such as chat. A world or user that is not loaded yet gets an empty display.
+     * 
+     * @param worldName the name of the world, or null for the selected world
+     * @param playerName the name of the player
+     * @return the player's display
+     */
+    public UserDisplay getLoadedPlayerDisplay(String worldName, String playerName) {
+        World world = plugin.getDataManager().getLoadedWorld(worldName);
+        return world != null ? world.getLoadedDisplay(playerName) : UserDisplay.EMPTY;
+    }
+    
     @Override
     public String getPlayerPrefix(String worldName, String playerName) {
-        World world = getWorld(worldName);
-        if (!world.hasUser(playerName)) {
-            return "";
-        }
-        
-        User user = world.getUser(playerName);
-        
-        // Check for user-specific prefix
-        String prefix = user.getMeta("prefix");
-        if (prefix != null) {
-            return prefix;
-        }
-        
-        // Check for group prefixes
-        for (String groupName : user.getGroups()) {
-            if (world.hasGroup(groupName)) {
-                Group group = world.getGroup(groupName);
-                prefix = group.getMeta("prefix");
-                if (prefix != null) {
-                    return prefix;
-                }
-            }
-        }
-        
-        return "";
+        return getPlayerDisplay(worldName, playerName).getPrefix();
     }
     
     @Override
@@ -70,10 +79,11 @@ public class VaultChatHook extends Chat {
     
     @Override
     public void setPlayerPrefix(String worldName, String playerName, String prefix) {
-        World world = getWorld(worldName);
-        User user = world.getUser(playerName);
-        user.setMeta("prefix", prefix);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            User user = getWorld(worldName).getUser(playerName);
+            user.setMeta("prefix", prefix);
+            saveIfNeeded();
+        });
     }
     
     @Override
@@ -83,31 +93,7 @@ public class VaultChatHook extends Chat {
     
     @Override
     public String getPlayerSuffix(String worldName, String playerName) {
-        World world = getWorld(worldName);
-        if (!world.hasUser(playerName)) {
-            return "";
-        }
-        
-        User user = world.getUser(playerName);
-        
-        // Check for user-specific suffix
-        String suffix = user.getMeta("suffix");
-        if (suffix != null) {
-            return suffix;
-        }
-        
-        // Check for group suffixes
-        for (String groupName : user.getGroups()) {
-            if (world.hasGroup(groupName)) {
-                Group group = world.getGroup(groupName);
-                suffix = group.getMeta("suffix");
-                if (suffix != null) {
-                    return suffix;
-                }
-            }
-        }
-        
-        return "";
+        return getPlayerDisplay(worldName, playerName).getSuffix();
     }
     
     @Override
@@ -117,10 +103,11 @@ public class VaultChatHook extends Chat {
     
     @Override
     public void setPlayerSuffix(String worldName, String playerName, String suffix) {
-        World world = getWorld(worldName);
-        User user = world.getUser(playerName);
-        user.setMeta("suffix", suffix);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            User user = getWorld(worldName).getUser(playerName);
+            user.setMeta("suffix", suffix);
+            saveIfNeeded();
+        });
     }
     
     @Override
@@ -130,8 +117,8 @@ public class VaultChatHook extends Chat {
     
     @Override
     public String getGroupPrefix(String worldName, String groupName) {
-        World world = getWorld(worldName);
-        if (!world.hasGroup(groupName)) {
+        World world = plugin.getDataManager().getReadableWorld(worldName);
+        if (world == null || !world.hasGroup(groupName)) {
             return "";
         }
         
@@ -142,16 +129,17 @@ public class VaultChatHook extends Chat {
     
     @Override
     public void setGroupPrefix(String worldName, String groupName, String prefix) {
-        World world = getWorld(worldName);
-        Group group = world.getGroup(groupName);
-        group.setMeta("prefix", prefix);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            Group group = getWorld(worldName).getGroup(groupName);
+            group.setMeta("prefix", prefix);
+            saveIfNeeded();
+        });
     }
     
     @Override
     public String getGroupSuffix(String worldName, String groupName) {
-        World world = getWorld(worldName);
-        if (!world.hasGroup(groupName)) {
+        World world = plugin.getDataManager().getReadableWorld(worldName);
+        if (world == null || !world.hasGroup(groupName)) {
             return "";
         }
         
@@ -162,10 +150,11 @@ public class VaultChatHook extends Chat {
     
     @Override
     public void setGroupSuffix(String worldName, String groupName, String suffix) {
-        World world = getWorld(worldName);
-        Group group = world.getGroup(groupName);
-        group.setMeta("suffix", suffix);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            Group group = getWorld(worldName).getGroup(groupName);
+            group.setMeta("suffix", suffix);
+            saveIfNeeded();
+        });
     }
     
     @Override
@@ -306,12 +295,11 @@ public class VaultChatHook extends Chat {
     
     @Override
     public String getPlayerInfoString(String worldName, String playerName, String node, String defaultValue) {
-        World world = getWorld(worldName);
-        if (!world.hasUser(playerName)) {
+        User user = plugin.getDataManager().getReadableUser(worldName, playerName);
+        if (user == null) {
             return defaultValue;
         }
         
-        User user = world.getUser(playerName);
         String value = user.getMeta(node);
         return value != null ? value : defaultValue;
     }
@@ -323,10 +311,11 @@ public class VaultChatHook extends Chat {
     
     @Override
     public void setPlayerInfoString(String worldName, String playerName, String node, String value) {
-        World world = getWorld(worldName);
-        User user = world.getUser(playerName);
-        user.setMeta(node, value);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            User user = getWorld(worldName).getUser(playerName);
+            user.setMeta(node, value);
+            saveIfNeeded();
+        });
     }
     
     @Override
@@ -336,8 +325,8 @@ public class VaultChatHook extends Chat {
     
     @Override
     public String getGroupInfoString(String worldName, String groupName, String node, String defaultValue) {
-        World world = getWorld(worldName);
-        if (!world.hasGroup(groupName)) {
+        World world = plugin.getDataManager().getReadableWorld(worldName);
+        if (world == null || !world.hasGroup(groupName)) {
             return defaultValue;
         }
         
@@ -348,10 +337,11 @@ public class VaultChatHook extends Chat {
     
     @Override
     public void setGroupInfoString(String worldName, String groupName, String node, String value) {
-        World world = getWorld(worldName);
-        Group group = world.getGroup(groupName);
-        group.setMeta(node, value);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            Group group = getWorld(worldName).getGroup(groupName);
+            group.setMeta(node, value);
+            saveIfNeeded();
+        });
     }
     
     /**
@@ -11,6 +11,9 @@ import org.frizzlenpop.frizzlenRanks.model.World;
 
 /**
  * Provides integration with Vault's permission API.
+ * Changes requested off the main thread are applied on the next tick. Reads off the
+ * main thread only see worlds and users already in memory and never take a lock;
+ * a player that is not loaded has no permissions or groups there.
  */
 public class VaultPermissionHook extends Permission {
     private final FrizzlenRanks plugin;
@@ -46,8 +49,12 @@ public class VaultPermissionHook extends Permission {
     
     @Override
     public boolean playerHas(String worldName, String playerName, String permission) {
-        World world = getWorld(worldName);
-        return world.hasPermission(playerName, permission);
+        if (Bukkit.isPrimaryThread()) {
+            return getWorld(worldName).hasPermission(playerName, permission);
+        }
+        
+        World world = plugin.getDataManager().getReadableWorld(worldName);
+        return world != null && world.hasLoadedPermission(playerName, permission);
     }
     
     @Override
@@ -57,10 +64,11 @@ public class VaultPermissionHook extends Permission {
     
     @Override
     public boolean playerAdd(String worldName, String playerName, String permission) {
-        World world = getWorld(worldName);
-        User user = world.getUser(playerName);
-        user.addPermission(permission);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            User user = getWorld(worldName).getUser(playerName);
+            user.addPermission(permission);
+            saveIfNeeded();
+        });
         return true;
     }
     
@@ -71,10 +79,11 @@ public class VaultPermissionHook extends Permission {
     
     @Override
     public boolean playerRemove(String worldName, String playerName, String permission) {
-        World world = getWorld(worldName);
-        User user = world.getUser(playerName);
-        user.removePermission(permission);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            User user = getWorld(worldName).getUser(playerName);
+            user.removePermission(permission);
+            saveIfNeeded();
+        });
         return true;
     }
     
@@ -85,8 +94,8 @@ public class VaultPermissionHook extends Permission {
     
     @Override
     public boolean groupHas(String worldName, String groupName, String permission) {
-        World world = getWorld(worldName);
-        if (!world.hasGroup(groupName)) {
+        World world = plugin.getDataManager().getReadableWorld(worldName);
+        if (world == null || !world.hasGroup(groupName)) {
             return false;
         }
         
@@ -96,35 +105,33 @@ public class VaultPermissionHook extends Permission {
     
     @Override
     public boolean groupAdd(String worldName, String groupName, String permission) {
-        World world = getWorld(worldName);
-        Group group = world.getGroup(groupName);
-        group.addPermission(permission);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            Group group = getWorld(worldName).getGroup(groupName);
+            group.addPermission(permission);
+            saveIfNeeded();
+        });
         return true;
     }
     
     @Override
     public boolean groupRemove(String worldName, String groupName, String permission) {
-        World world = getWorld(worldName);
-        if (!world.hasGroup(groupName)) {
+        World world = plugin.getDataManager().getReadableWorld(worldName);
+        if (world != null && !world.hasGroup(groupName)) {
             return false;
         }
         
-        Group group = world.getGroup(groupName);
-        group.removePermission(permission);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            Group group = getWorld(worldName).getGroup(groupName);
+            group.removePermission(permission);
+            saveIfNeeded();
+        });
         return true;
     }
     
     @Override
     public boolean playerInGroup(String worldName, String playerName, String groupName) {
-        World world = getWorld(worldName);
-        if (!world.hasUser(playerName)) {
-            return false;
-        }
-        
-        User user = world.getUser(playerName);
-        return user.inGroup(groupName);
+        User user = plugin.getDataManager().getReadableUser(worldName, playerName);
+        return user != null && user.inGroup(groupName);
     }
     
     @Override
@@ -134,10 +141,11 @@ public class VaultPermissionHook extends Permission {
     
     @Override
     public boolean playerAddGroup(String worldName, String playerName, String groupName) {
-        World world = getWorld(worldName);
-        User user = world.getUser(playerName);
-        user.addGroup(groupName);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            User user = getWorld(worldName).getUser(playerName);
+            user.addGroup(groupName);
+            saveIfNeeded();
+        });
         return true;
     }
     
@@ -148,14 +156,18 @@ public class VaultPermissionHook extends Permission {
     
     @Override
     public boolean playerRemoveGroup(String worldName, String playerName, String groupName) {
-        World world = getWorld(worldName);
-        if (!world.hasUser(playerName)) {
+        // Off the main thread the user may simply not be loaded yet, so that is checked when the change runs
+        if (Bukkit.isPrimaryThread() && !getWorld(worldName).hasUser(playerName)) {
             return false;
         }
         
-        User user = world.getUser(playerName);
-        user.removeGroup(groupName);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            World world = getWorld(worldName);
+            if (world.hasUser(playerName)) {
+                world.getUser(playerName).removeGroup(groupName);
+                saveIfNeeded();
+            }
+        });
         return true;
     }
     
@@ -166,12 +178,11 @@ public class VaultPermissionHook extends Permission {
     
     @Override
     public String[] getPlayerGroups(String worldName, String playerName) {
-        World world = getWorld(worldName);
-        if (!world.hasUser(playerName)) {
+        User user = plugin.getDataManager().getReadableUser(worldName, playerName);
+        if (user == null) {
             return new String[0];
         }
         
-        User user = world.getUser(playerName);
         return user.getGroups().toArray(new String[0]);
     }
     
@@ -198,20 +209,18 @@ public class VaultPermissionHook extends Permission {
     
     @Override
     public String[] getGroups() {
-        World world = plugin.getDataManager().getSelectedWorldObj();
+        World world = plugin.getDataManager().getReadableWorld(null);
+        if (world == null) {
+            return new String[0];
+        }
         return world.getGroups().stream()
                 .map(Group::getName)
                 .toArray(String[]::new);
     }
     
     public boolean hasPlayerInfo(String worldName, String playerName, String node) {
-        World world = getWorld(worldName);
-        if (!world.hasUser(playerName)) {
-            return false;
-        }
-        
-        User user = world.getUser(playerName);
-        return user.getMeta(node) != null;
+        User user = plugin.getDataManager().getReadableUser(worldName, playerName);
+        return user != null && user.getMeta(node) != null;
     }
     
     public boolean hasPlayerInfo(String worldName, OfflinePlayer player, String node) {
@@ -219,12 +228,11 @@ public class VaultPermissionHook extends Permission {
     }
     
     public String getPlayerInfoString(String worldName, String playerName, String node, String defaultValue) {
-        World world = getWorld(worldName);
-        if (!world.hasUser(playerName)) {
+        User user = plugin.getDataManager().getReadableUser(worldName, playerName);
+        if (user == null) {
             return defaultValue;
         }
         
-        User user = world.getUser(playerName);
         String value = user.getMeta(node);
         return value != null ? value : defaultValue;
     }
@@ -281,10 +289,11 @@ public class VaultPermissionHook extends Permission {
     }
     
     public void setPlayerInfo(String worldName, String playerName, String node, Object value) {
-        World world = getWorld(worldName);
-        User user = world.getUser(playerName);
-        user.setMeta(node, value != null ? value.toString() : null);
-        saveIfNeeded();
+        plugin.getDataManager().applyChange(() -> {
+            User user = getWorld(worldName).getUser(playerName);
+            user.setMeta(node, value != null ? value.toString() : null);
+            saveIfNeeded();
+        });
     }
     
     public void setPlayerInfo(String worldName, OfflinePlayer player, String node, Object value) {